@@ -0,0 +1,22 @@
+#!/bin/sh
+#
+# Runs the benchmarks and keeps the results under benchmarks/results so they
+# can be compared between releases.
+#
+#   ./run.sh [label] [jmh options]
+#
+# The label defaults to the output of git describe. Compare two runs with
+#
+#   java -cp target/benchmarks.jar \
+#       com.ijsbrandslob.appirater.benchmark.CompareResults \
+#       results/<old>.json results/<new>.json [threshold-percent]
+#
+set -e
+cd "$(dirname "$0")"
+
+LABEL=${1:-$(git describe --tags --always --dirty)}
+[ $# -gt 0 ] && shift
+
+mvn -q -B package
+mkdir -p results
+java -jar target/benchmarks.jar -prof gc -rf json -rff "results/$LABEL.json" "$@"
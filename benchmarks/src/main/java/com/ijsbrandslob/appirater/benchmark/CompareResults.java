@@ -0,0 +1,79 @@
+package com.ijsbrandslob.appirater.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares two JMH result files written by run.sh and prints the change of
+ * every score. Exits with status 1 if a benchmark got slower than the allowed
+ * threshold, so it can fail a release build.
+ *
+ * Usage: CompareResults baseline.json candidate.json [threshold-percent]
+ */
+public class CompareResults {
+	private static final Pattern RESULT = Pattern.compile(
+			"\"benchmark\"\\s*:\\s*\"([^\"]+)\".*?\"mode\"\\s*:\\s*\"([^\"]+)\".*?"
+					+ "\"params\"\\s*:\\s*(\\{[^}]*\\}|null)?.*?"
+					+ "\"primaryMetric\"\\s*:\\s*\\{\\s*\"score\"\\s*:\\s*([-+0-9.eE]+|\"NaN\")",
+			Pattern.DOTALL);
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: CompareResults baseline.json candidate.json [threshold-percent]");
+			System.exit(2);
+		}
+		double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10.0;
+
+		Map<String, Double> baseline = read(new File(args[0]));
+		Map<String, Double> candidate = read(new File(args[1]));
+
+		boolean regressed = false;
+		for (Map.Entry<String, Double> entry : candidate.entrySet()) {
+			Double before = baseline.get(entry.getKey());
+			if (before == null || before == 0) {
+				System.out.println(String.format("%-90s %14.3f  (new)", entry.getKey(), entry.getValue()));
+				continue;
+			}
+
+			double change = (entry.getValue() - before) / before * 100;
+			// Higher is better for throughput, lower is better for times
+			boolean worse = entry.getKey().contains("[thrpt]") ? change < -threshold : change > threshold;
+			regressed |= worse;
+			System.out.println(String.format("%-90s %14.3f %+8.1f%%%s", entry.getKey(),
+					entry.getValue(), change, worse ? "  REGRESSION" : ""));
+		}
+
+		System.exit(regressed ? 1 : 0);
+	}
+
+	private static Map<String, Double> read(File file) throws IOException {
+		StringBuilder json = new StringBuilder();
+		Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+		try {
+			char[] buffer = new char[8192];
+			int read;
+			while ((read = reader.read(buffer)) > 0)
+				json.append(buffer, 0, read);
+		} finally {
+			reader.close();
+		}
+
+		Map<String, Double> scores = new LinkedHashMap<String, Double>();
+		Matcher matcher = RESULT.matcher(json);
+		while (matcher.find()) {
+			String params = matcher.group(3) == null || "null".equals(matcher.group(3)) ? ""
+					: matcher.group(3).replaceAll("\\s+", "");
+			String score = matcher.group(4);
+			scores.put(matcher.group(1) + params + " [" + matcher.group(2) + "]",
+					score.startsWith("\"") ? Double.NaN : Double.parseDouble(score));
+		}
+		return scores;
+	}
+}
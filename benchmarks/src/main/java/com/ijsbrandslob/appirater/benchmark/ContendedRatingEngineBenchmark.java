@@ -0,0 +1,130 @@
+package com.ijsbrandslob.appirater.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ijsbrandslob.appirater.core.AppVersion;
+import com.ijsbrandslob.appirater.core.EventAccumulator;
+import com.ijsbrandslob.appirater.core.RatingEngine;
+import com.ijsbrandslob.appirater.core.RatingPolicy;
+
+/**
+ * The engine shared by several threads, like the UI thread, Appirater's
+ * background thread and game threads reporting events at the same time.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class ContendedRatingEngineBenchmark {
+	RatingEngine engine;
+	EventAccumulator accumulator;
+
+	@Setup(Level.Iteration)
+	public void setUp() {
+		engine = new RatingEngine(new RatingPolicy(15, Integer.MAX_VALUE, 1, -1, AppVersion.Granularity.MINOR,
+				RatingEngineBenchmark.CHANNELS, null, false),
+				new InMemoryStateStore(), RatingEngineBenchmark.CLOCK);
+		engine.load(RatingEngineBenchmark.VERSION);
+		accumulator = new EventAccumulator(RatingEngineBenchmark.CHANNELS.size(), 1000, 4096,
+				new EventAccumulator.DrainScheduler() {
+					public void scheduleDrain(long delayMillis) {
+						// Drained by batchedDrains()
+					}
+				});
+	}
+
+	/*
+	 * Four threads reporting significant events at once.
+	 */
+	@Benchmark
+	@Group("events")
+	@GroupThreads(4)
+	public boolean significantEvents() {
+		engine.recordSignificantEvent();
+		return engine.ratingConditionsHaveBeenMet();
+	}
+
+	/*
+	 * Four threads reporting events on channels at once.
+	 */
+	@Benchmark
+	@Group("channels")
+	@GroupThreads(4)
+	public boolean channelEvents() {
+		engine.recordSignificantEvent(0);
+		return engine.ratingConditionsHaveBeenMet();
+	}
+
+	/*
+	 * Four threads reporting events through an EventAccumulator while another
+	 * one keeps draining it and checking the conditions, as Appirater does
+	 * with Config.Builder.setEventBatching().
+	 */
+	@Benchmark
+	@Group("batched")
+	@GroupThreads(4)
+	public void batchedEvents() {
+		accumulator.record(0);
+	}
+
+	@Benchmark
+	@Group("batched")
+	@GroupThreads(1)
+	public boolean batchedDrains() {
+		accumulator.drainTo(engine);
+		return engine.ratingConditionsHaveBeenMet();
+	}
+
+	/*
+	 * Event reporters mixed with a thread recording uses and one that keeps
+	 * writing the changes.
+	 */
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(2)
+	public boolean mixedEvents() {
+		engine.recordSignificantEvent();
+		return engine.ratingConditionsHaveBeenMet();
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(1)
+	public boolean mixedUses() {
+		engine.recordUses(1);
+		return engine.ratingConditionsHaveBeenMet();
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(1)
+	public void mixedWrites() {
+		engine.flush();
+	}
+
+	/*
+	 * Eligibility checks only, as done by every thread between events.
+	 */
+	@Benchmark
+	@Group("checks")
+	@GroupThreads(4)
+	public boolean concurrentChecks() {
+		return engine.ratingConditionsHaveBeenMet();
+	}
+}
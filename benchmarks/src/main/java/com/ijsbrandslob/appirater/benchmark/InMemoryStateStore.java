@@ -0,0 +1,53 @@
+package com.ijsbrandslob.appirater.benchmark;
+
+import com.ijsbrandslob.appirater.core.EventChannels;
+import com.ijsbrandslob.appirater.core.RatingState;
+import com.ijsbrandslob.appirater.core.RatingStateStore;
+
+/**
+ * Stands in for the SharedPreferences store. Keeps the stored state in a
+ * field, so benchmarks measure the engine and not the disk.
+ */
+public class InMemoryStateStore implements RatingStateStore {
+	private volatile RatingState mStored;
+	private volatile int[] mEventCounts;
+	private volatile int mWrites;
+
+	public InMemoryStateStore() {
+	}
+
+	public InMemoryStateStore(RatingState stored) {
+		mStored = stored;
+	}
+
+	public RatingState load() {
+		return mStored;
+	}
+
+	public void save(RatingState state, int fields) {
+		RatingState stored = mStored != null ? mStored : RatingState.EMPTY;
+		// Take the written fields from state and keep the others
+		mStored = stored.withDirtyFields(RatingState.ALL_FIELDS ^ fields)
+				.mergeStored(state).clean();
+		mWrites++;
+	}
+
+	public void loadEventCounts(EventChannels channels, int[] counts) {
+		int[] stored = mEventCounts;
+		if (stored != null)
+			System.arraycopy(stored, 0, counts, 0, Math.min(stored.length, counts.length));
+	}
+
+	public void saveEventCounts(EventChannels channels, int[] counts) {
+		mEventCounts = counts.clone();
+		mWrites++;
+	}
+
+	public void setChangeListener(ChangeListener listener) {
+		// Nobody else writes to this store
+	}
+
+	public int writes() {
+		return mWrites;
+	}
+}
@@ -0,0 +1,134 @@
+package com.ijsbrandslob.appirater.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ijsbrandslob.appirater.core.AppVersion;
+import com.ijsbrandslob.appirater.core.Clock;
+import com.ijsbrandslob.appirater.core.Eligibility;
+import com.ijsbrandslob.appirater.core.EventChannels;
+import com.ijsbrandslob.appirater.core.RatingEngine;
+import com.ijsbrandslob.appirater.core.RatingPolicy;
+import com.ijsbrandslob.appirater.core.RatingRule;
+import com.ijsbrandslob.appirater.core.RatingState;
+
+/**
+ * Single-threaded cost of the paths Appirater runs on every resume and every
+ * significant event. The names follow the Appirater methods they stand for.
+ *
+ * Run with -prof gc to see the allocation rate of each path.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RatingEngineBenchmark {
+	static final long VERSION = AppVersion.key("2.3.1", 231);
+	static final EventChannels CHANNELS = new EventChannels(
+			new String[] { "level_cleared", "purchase", "share" },
+			new int[] { 0, 0, 0 }, new int[] { 1, 5, 2 });
+
+	/*
+	 * Day 1000. Time does not pass during a benchmark.
+	 */
+	static final Clock CLOCK = new Clock() {
+		public long currentTimeMillis() {
+			return 1000L * Eligibility.DAY_MILLIS;
+		}
+	};
+
+	/*
+	 * The rule from the RatingRule documentation. Last crashed long ago.
+	 */
+	static final RatingRule RULE = RatingRule.uses().atLeast(10)
+			.and(RatingRule.days().atLeast(7))
+			.or(RatingRule.events("purchase").atLeast(1))
+			.and(RatingRule.daysSince(new RatingRule.Input() {
+				public long get() {
+					return 0;
+				}
+			}).lessThan(3).not());
+
+	/**
+	 * "waiting": the thresholds are far away, the common case. "eligible":
+	 * every event passes the checks. "rule": a RatingRule instead of the
+	 * thresholds, checked on every event but not matching.
+	 */
+	@Param({ "waiting", "eligible", "rule" })
+	public String scenario;
+
+	RatingEngine engine;
+	InMemoryStateStore store;
+
+	@Setup(Level.Iteration)
+	public void setUp() {
+		RatingPolicy policy;
+		if ("eligible".equals(scenario))
+			policy = new RatingPolicy(0, 0, 1, -1, AppVersion.Granularity.MINOR, CHANNELS, null, false);
+		else if ("rule".equals(scenario))
+			policy = new RatingPolicy(15, 20, 1, -1, AppVersion.Granularity.MINOR, CHANNELS, RULE, false);
+		else
+			policy = new RatingPolicy(15, Integer.MAX_VALUE, 1, -1, AppVersion.Granularity.MINOR, CHANNELS, null, false);
+
+		store = new InMemoryStateStore(new RatingState(CLOCK.currentTimeMillis(),
+				RatingState.NO_DATE, 3, 1, VERSION, false, false, 0));
+		engine = new RatingEngine(policy, store, CLOCK);
+		engine.load(VERSION);
+	}
+
+	@Benchmark
+	public boolean incrementAndRate() {
+		engine.recordUses(1);
+		return engine.ratingConditionsHaveBeenMet();
+	}
+
+	@Benchmark
+	public boolean incrementSignificantEventAndRate() {
+		engine.recordSignificantEvent();
+		return engine.ratingConditionsHaveBeenMet();
+	}
+
+	@Benchmark
+	public boolean channelEventAndRate() {
+		engine.recordSignificantEvent(0);
+		return engine.ratingConditionsHaveBeenMet();
+	}
+
+	@Benchmark
+	public boolean ratingConditionsHaveBeenMet() {
+		return engine.ratingConditionsHaveBeenMet();
+	}
+
+	@Benchmark
+	public RatingState loadSettings() {
+		engine.load(VERSION);
+		return engine.state();
+	}
+
+	@Benchmark
+	public int saveSettings() {
+		engine.markAllDirty();
+		engine.flush();
+		return store.writes();
+	}
+
+	@Benchmark
+	public boolean newAppVersion() {
+		return AppVersion.isNewVersion(engine.state().currentVersion, VERSION,
+				AppVersion.Granularity.MINOR);
+	}
+}
@@ -0,0 +1,78 @@
+package com.ijsbrandslob.appirater.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ijsbrandslob.appirater.core.JournalStateStore;
+import com.ijsbrandslob.appirater.core.MappedStateStore;
+import com.ijsbrandslob.appirater.core.RatingState;
+import com.ijsbrandslob.appirater.core.RatingStateStore;
+
+/**
+ * Cost of writing one changed value to the file-based stores on the local
+ * disk, and of loading the state back. The journal syncs every write and
+ * replaces itself by a snapshot every 16 KB; the mapped file is written back
+ * by the system.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StateStoreBenchmark {
+	@Param({ "journal", "mapped" })
+	public String storage;
+
+	File file;
+	RatingStateStore store;
+	RatingState state;
+
+	@Setup(Level.Iteration)
+	public void setUp() throws IOException {
+		file = File.createTempFile("appirater", ".journal");
+		file.delete();
+		store = createStore();
+		state = RatingState.EMPTY.withFirstUseDate(0)
+				.resetForVersion(RatingEngineBenchmark.VERSION);
+		store.save(state, RatingState.ALL_FIELDS);
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Benchmark
+	public RatingState saveUseCount() {
+		state = state.withUses(1);
+		store.save(state, RatingState.FIELD_USE_COUNT);
+		return state;
+	}
+
+	@Benchmark
+	public RatingState load() {
+		return createStore().load();
+	}
+
+	private RatingStateStore createStore() {
+		if ("mapped".equals(storage))
+			return new MappedStateStore(file);
+		return new JournalStateStore(file, 16 * 1024);
+	}
+}
@@ -0,0 +1,323 @@
+package com.ijsbrandslob.appirater.simulation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import com.ijsbrandslob.appirater.core.AppVersion;
+import com.ijsbrandslob.appirater.core.Eligibility;
+import com.ijsbrandslob.appirater.core.EventChannels;
+import com.ijsbrandslob.appirater.core.RatingEngine;
+import com.ijsbrandslob.appirater.core.RatingPolicy;
+import com.ijsbrandslob.appirater.core.RatingState;
+import com.ijsbrandslob.appirater.core.RatingStateStore;
+
+/**
+ * Replays usage traces through the RatingEngine for every combination of the
+ * given thresholds and reports how often and how soon users would be
+ * prompted. Each user gets an engine of its own with a virtual clock set to
+ * the time of the event being replayed; the users of a policy are spread
+ * over the cores with fork/join.
+ *
+ * When the engine would prompt, the user rates, asks to be reminded later
+ * or declines, at random with the given chances.
+ *
+ * Usage: PolicySimulator [options], for example
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar \
+ *     com.ijsbrandslob.appirater.simulation.PolicySimulator \
+ *     --users 100000 --days 0,7,15 --uses 5,10,20 --events -1,5
+ * </pre>
+ *
+ * Options, lists are separated by commas:
+ *
+ * <pre>
+ * --days, --uses, --events, --remind   thresholds to sweep (15 / 20 / -1 / 1)
+ * --channel name:threshold:weight      an event channel, may be repeated
+ * --rate, --remind-later               chances of each answer (0.2 / 0.5)
+ * --traces file                        replay recorded traces, see RecordedTraces
+ * --users, --seed, --horizon           synthetic population (100000 / 1 / 90 days)
+ * --sessions-per-day, --foregrounds-per-session, --events-per-session,
+ * --churn-per-day                      synthetic usage (0.8 / 1 / 0.3 / 0.02)
+ * --parallelism                        worker threads (all cores)
+ * </pre>
+ */
+public class PolicySimulator {
+	private static final long VERSION = AppVersion.key("1.0", 1);
+
+	// Users simulated by one fork/join task without splitting further
+	private static final int BATCH = 1024;
+
+	private static final RatingStateStore NO_STORE = new RatingStateStore() {
+		public RatingState load() {
+			return null;
+		}
+
+		public void save(RatingState state, int fields) {
+		}
+
+		public void loadEventCounts(EventChannels channels, int[] counts) {
+		}
+
+		public void saveEventCounts(EventChannels channels, int[] counts) {
+		}
+
+		public void setChangeListener(ChangeListener listener) {
+		}
+	};
+
+	private final TraceSource mTraces;
+	private final int mHorizonDays;
+	private final EventChannels mChannels;
+	private final int[] mChannelIds;
+	private final double mRateChance;
+	private final double mRemindChance;
+	private final long mSeed;
+	private final ForkJoinPool mPool;
+
+	/**
+	 * @param traces The users to replay.
+	 * @param horizonDays The longest time to first prompt that is reported
+	 *            exactly.
+	 * @param channels The event channels of the policies.
+	 * @param rateChance The chance that a prompted user rates.
+	 * @param remindChance The chance that a prompted user asks to be reminded
+	 *            later. The others decline.
+	 * @param seed Seeds the answers of the users.
+	 * @param pool Runs the users in parallel.
+	 */
+	public PolicySimulator(TraceSource traces, int horizonDays, EventChannels channels,
+			double rateChance, double remindChance, long seed, ForkJoinPool pool) {
+		mTraces = traces;
+		mHorizonDays = horizonDays;
+		mChannels = channels;
+		mRateChance = rateChance;
+		mRemindChance = remindChance;
+		mSeed = seed;
+		mPool = pool;
+
+		String[] names = traces.channelNames();
+		mChannelIds = new int[names.length];
+		for (int i = 0; i < names.length; ++i)
+			mChannelIds[i] = channels.id(names[i]);
+	}
+
+	public SimulationStats run(RatingPolicy policy) {
+		return mPool.invoke(new SimulationTask(policy, 0, mTraces.users()));
+	}
+
+	/*
+	 * Simulates a range of users, splitting it in half while it is larger
+	 * than BATCH.
+	 */
+	private final class SimulationTask extends RecursiveTask<SimulationStats> {
+		private static final long serialVersionUID = 1L;
+
+		private final RatingPolicy mPolicy;
+		private final int mFrom;
+		private final int mTo;
+
+		SimulationTask(RatingPolicy policy, int from, int to) {
+			mPolicy = policy;
+			mFrom = from;
+			mTo = to;
+		}
+
+		@Override
+		protected SimulationStats compute() {
+			if (mTo - mFrom > BATCH) {
+				int middle = (mFrom + mTo) >>> 1;
+				SimulationTask second = new SimulationTask(mPolicy, middle, mTo);
+				second.fork();
+				SimulationStats stats = new SimulationTask(mPolicy, mFrom, middle).compute();
+				return stats.merge(second.join());
+			}
+
+			SimulationStats stats = new SimulationStats(mHorizonDays);
+			for (int user = mFrom; user < mTo; ++user) {
+				UserSimulation simulation = new UserSimulation(mPolicy, user, stats);
+				mTraces.replay(user, simulation);
+				if (simulation.mEngine != null)
+					stats.users++;
+			}
+			return stats;
+		}
+	}
+
+	/*
+	 * Feeds the trace of one user to an engine, the way Appirater does with
+	 * canPromptForRating set: every use and event is followed by a check.
+	 */
+	private final class UserSimulation implements TraceSource.Listener {
+		private final RatingPolicy mPolicy;
+		private final SplittableRandom mRandom;
+		private final SimulationStats mStats;
+		private final VirtualClock mClock = new VirtualClock();
+
+		RatingEngine mEngine;
+		private long mFirstUse;
+		private boolean mPrompted;
+
+		UserSimulation(RatingPolicy policy, int user, SimulationStats stats) {
+			mPolicy = policy;
+			mRandom = SyntheticTraces.random(~mSeed, user);
+			mStats = stats;
+		}
+
+		public void onEvent(long time, int kind, int channel) {
+			mClock.set(time);
+			if (mEngine == null) {
+				mEngine = new RatingEngine(mPolicy, NO_STORE, mClock);
+				mEngine.load(VERSION);
+				mFirstUse = time;
+			}
+
+			if (kind != TraceSource.SIGNIFICANT_EVENT)
+				mEngine.recordUses(1);
+			else if (channel >= 0 && mChannelIds[channel] >= 0)
+				mEngine.recordSignificantEvent(mChannelIds[channel]);
+			else
+				mEngine.recordSignificantEvent();
+
+			if (mEngine.ratingConditionsHaveBeenMet())
+				prompt(time);
+		}
+
+		private void prompt(long time) {
+			mStats.prompts++;
+			if (!mPrompted) {
+				mPrompted = true;
+				mStats.promptedUsers++;
+				mStats.recordFirstPrompt((time - mFirstUse) / Eligibility.DAY_MILLIS);
+			}
+
+			double answer = mRandom.nextDouble();
+			if (answer < mRateChance) {
+				mStats.rated++;
+				mEngine.setRatedCurrentVersion(true);
+			} else if (answer < mRateChance + mRemindChance) {
+				mStats.remindLater++;
+				mEngine.remindLater();
+			} else {
+				mStats.declined++;
+				mEngine.declineToRate();
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		Map<String, List<String>> options = parse(args);
+		int horizon = Integer.parseInt(option(options, "horizon", "90"));
+		long seed = Long.parseLong(option(options, "seed", "1"));
+
+		TraceSource traces;
+		if (options.containsKey("traces")) {
+			traces = new RecordedTraces(new File(option(options, "traces", null)));
+		} else {
+			traces = new SyntheticTraces(
+					Integer.parseInt(option(options, "users", "100000")), seed, horizon,
+					Double.parseDouble(option(options, "sessions-per-day", "0.8")),
+					Double.parseDouble(option(options, "foregrounds-per-session", "1")),
+					Double.parseDouble(option(options, "events-per-session", "0.3")),
+					Double.parseDouble(option(options, "churn-per-day", "0.02")));
+		}
+
+		EventChannels channels = EventChannels.NONE;
+		List<String> channelOptions = options.get("channel");
+		if (channelOptions != null) {
+			String[] names = new String[channelOptions.size()];
+			int[] thresholds = new int[names.length];
+			int[] weights = new int[names.length];
+			for (int i = 0; i < names.length; ++i) {
+				String[] parts = channelOptions.get(i).split(":");
+				if (parts.length != 3)
+					throw new IllegalArgumentException("Expected --channel name:threshold:weight");
+				names[i] = parts[0];
+				thresholds[i] = Integer.parseInt(parts[1]);
+				weights[i] = Integer.parseInt(parts[2]);
+			}
+			channels = new EventChannels(names, thresholds, weights);
+		}
+
+		int parallelism = Integer.parseInt(option(options, "parallelism",
+				String.valueOf(Runtime.getRuntime().availableProcessors())));
+		PolicySimulator simulator = new PolicySimulator(traces, horizon, channels,
+				Double.parseDouble(option(options, "rate", "0.2")),
+				Double.parseDouble(option(options, "remind-later", "0.5")),
+				seed, new ForkJoinPool(parallelism));
+
+		int[] days = ints(option(options, "days", "15"));
+		int[] uses = ints(option(options, "uses", "20"));
+		int[] events = ints(option(options, "events", "-1"));
+		int[] remind = ints(option(options, "remind", "1"));
+
+		System.out.println(String.format("%5s %5s %6s %6s | %8s %8s %8s %9s %9s | %5s %5s %5s",
+				"days", "uses", "events", "remind", "prompted", "rated", "declined",
+				"prompts/p", "reminds/p", "p50", "p90", "p99"));
+
+		long start = System.nanoTime();
+		long simulated = 0;
+		for (int d : days) {
+			for (int u : uses) {
+				for (int e : events) {
+					for (int r : remind) {
+						SimulationStats stats = simulator.run(new RatingPolicy(d, u, r, e,
+								AppVersion.Granularity.MINOR, channels, null, false));
+						simulated += stats.users;
+						System.out.println(String.format(
+								"%5d %5d %6d %6d | %7.2f%% %7.2f%% %7.2f%% %9.2f %9.2f | %5d %5d %5d",
+								d, u, e, r, 100 * stats.promptRate(), 100 * stats.ratedRate(),
+								100 * stats.declinedRate(), stats.promptsPerPromptedUser(),
+								stats.remindersPerPromptedUser(),
+								stats.daysToPromptPercentile(0.5),
+								stats.daysToPromptPercentile(0.9),
+								stats.daysToPromptPercentile(0.99)));
+					}
+				}
+			}
+		}
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format(
+				"%d policies, %d simulated users in %.1f s (%.0f users/s)",
+				days.length * uses.length * events.length * remind.length, simulated,
+				seconds, simulated / seconds));
+	}
+
+	private static Map<String, List<String>> parse(String[] args) {
+		Map<String, List<String>> options = new LinkedHashMap<String, List<String>>();
+		for (int i = 0; i < args.length; i += 2) {
+			if (!args[i].startsWith("--") || i + 1 == args.length)
+				throw new IllegalArgumentException("Expected --option value, got " + args[i]);
+
+			String name = args[i].substring(2);
+			List<String> values = options.get(name);
+			if (values == null) {
+				values = new ArrayList<String>();
+				options.put(name, values);
+			}
+			values.add(args[i + 1]);
+		}
+		return options;
+	}
+
+	private static String option(Map<String, List<String>> options, String name, String fallback) {
+		List<String> values = options.get(name);
+		return values != null ? values.get(values.size() - 1) : fallback;
+	}
+
+	private static int[] ints(String list) {
+		String[] parts = list.split(",");
+		int[] values = new int[parts.length];
+		for (int i = 0; i < parts.length; ++i)
+			values[i] = Integer.parseInt(parts[i].trim());
+		return values;
+	}
+}
@@ -0,0 +1,130 @@
+package com.ijsbrandslob.appirater.simulation;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Traces read from a file with one event per line:
+ *
+ * <pre>
+ * user,time,kind
+ * </pre>
+ *
+ * where user identifies the user, time is in milliseconds and kind is
+ * launch, foreground, event or event:channel. Lines starting with # are
+ * skipped. The events of a user do not have to be in order or next to each
+ * other.
+ */
+public final class RecordedTraces implements TraceSource {
+	// The events of user u are at mStarts[u] up to mStarts[u + 1]
+	private final int[] mStarts;
+	private final long[] mTimes;
+	private final int[] mKinds;
+	private final int[] mChannels;
+	private final String[] mChannelNames;
+
+	public RecordedTraces(File file) throws IOException {
+		Map<String, List<long[]>> users = new HashMap<String, List<long[]>>();
+		List<String> order = new ArrayList<String>();
+		List<String> channelNames = new ArrayList<String>();
+		int events = 0;
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			int number = 0;
+			while ((line = reader.readLine()) != null) {
+				number++;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#"))
+					continue;
+
+				String[] fields = line.split(",");
+				if (fields.length != 3)
+					throw new IOException(file + ":" + number + ": expected user,time,kind");
+
+				long kind, channel = -1;
+				String name = fields[2].trim();
+				if (name.equals("launch")) {
+					kind = LAUNCH;
+				} else if (name.equals("foreground")) {
+					kind = FOREGROUND;
+				} else if (name.equals("event")) {
+					kind = SIGNIFICANT_EVENT;
+				} else if (name.startsWith("event:")) {
+					kind = SIGNIFICANT_EVENT;
+					String channelName = name.substring("event:".length());
+					channel = channelNames.indexOf(channelName);
+					if (channel < 0) {
+						channel = channelNames.size();
+						channelNames.add(channelName);
+					}
+				} else {
+					throw new IOException(file + ":" + number + ": unknown kind " + name);
+				}
+
+				String user = fields[0].trim();
+				List<long[]> trace = users.get(user);
+				if (trace == null) {
+					trace = new ArrayList<long[]>();
+					users.put(user, trace);
+					order.add(user);
+				}
+				try {
+					trace.add(new long[] { Long.parseLong(fields[1].trim()), kind, channel });
+				} catch (NumberFormatException ex) {
+					throw new IOException(file + ":" + number + ": bad time " + fields[1]);
+				}
+				events++;
+			}
+		} finally {
+			reader.close();
+		}
+
+		mStarts = new int[order.size() + 1];
+		mTimes = new long[events];
+		mKinds = new int[events];
+		mChannels = new int[events];
+		int index = 0;
+		for (int u = 0; u < order.size(); ++u) {
+			mStarts[u] = index;
+			long[][] trace = users.get(order.get(u)).toArray(new long[0][]);
+			Arrays.sort(trace, new Comparator<long[]>() {
+				public int compare(long[] a, long[] b) {
+					return a[0] < b[0] ? -1 : a[0] > b[0] ? 1 : 0;
+				}
+			});
+			for (long[] event : trace) {
+				mTimes[index] = event[0];
+				mKinds[index] = (int) event[1];
+				mChannels[index] = (int) event[2];
+				index++;
+			}
+		}
+		mStarts[order.size()] = index;
+		mChannelNames = channelNames.toArray(new String[channelNames.size()]);
+	}
+
+	public int users() {
+		return mStarts.length - 1;
+	}
+
+	public String[] channelNames() {
+		return mChannelNames.clone();
+	}
+
+	public void replay(int user, Listener listener) {
+		for (int i = mStarts[user]; i < mStarts[user + 1]; ++i)
+			listener.onEvent(mTimes[i], mKinds[i], mChannels[i]);
+	}
+}
@@ -0,0 +1,84 @@
+package com.ijsbrandslob.appirater.simulation;
+
+/**
+ * What happened to the users of one policy. Filled in by one thread per
+ * range of users and then merged.
+ */
+public final class SimulationStats {
+	long users;
+	long promptedUsers;
+	long prompts;
+	long rated;
+	long declined;
+	long remindLater;
+
+	// Users by the whole number of days between their first use and first prompt
+	long[] daysToPrompt;
+
+	SimulationStats(int horizonDays) {
+		daysToPrompt = new long[horizonDays + 1];
+	}
+
+	void recordFirstPrompt(long days) {
+		int bucket = (int) Math.max(0, Math.min(days, daysToPrompt.length - 1));
+		daysToPrompt[bucket]++;
+	}
+
+	SimulationStats merge(SimulationStats other) {
+		users += other.users;
+		promptedUsers += other.promptedUsers;
+		prompts += other.prompts;
+		rated += other.rated;
+		declined += other.declined;
+		remindLater += other.remindLater;
+		if (other.daysToPrompt.length > daysToPrompt.length) {
+			long[] days = other.daysToPrompt.clone();
+			for (int i = 0; i < daysToPrompt.length; ++i)
+				days[i] += daysToPrompt[i];
+			daysToPrompt = days;
+		} else {
+			for (int i = 0; i < other.daysToPrompt.length; ++i)
+				daysToPrompt[i] += other.daysToPrompt[i];
+		}
+		return this;
+	}
+
+	/**
+	 * @return The number of days from first use within which the given
+	 *         fraction of the prompted users was first prompted, or -1 if
+	 *         nobody was.
+	 */
+	public int daysToPromptPercentile(double fraction) {
+		long rank = (long) Math.ceil(fraction * promptedUsers);
+		long seen = 0;
+		for (int days = 0; days < daysToPrompt.length; ++days) {
+			seen += daysToPrompt[days];
+			if (seen >= rank && seen > 0)
+				return days;
+		}
+		return -1;
+	}
+
+	public double promptRate() {
+		return users == 0 ? 0 : (double) promptedUsers / users;
+	}
+
+	public double ratedRate() {
+		return users == 0 ? 0 : (double) rated / users;
+	}
+
+	public double declinedRate() {
+		return users == 0 ? 0 : (double) declined / users;
+	}
+
+	/**
+	 * @return The mean number of times a prompted user was prompted.
+	 */
+	public double promptsPerPromptedUser() {
+		return promptedUsers == 0 ? 0 : (double) prompts / promptedUsers;
+	}
+
+	public double remindersPerPromptedUser() {
+		return promptedUsers == 0 ? 0 : (double) remindLater / promptedUsers;
+	}
+}
@@ -0,0 +1,117 @@
+package com.ijsbrandslob.appirater.simulation;
+
+import java.util.SplittableRandom;
+
+import com.ijsbrandslob.appirater.core.Eligibility;
+
+/**
+ * Generates traces from a simple usage model while they are replayed, so a
+ * population of millions takes no memory. Every user has a usage rate drawn
+ * around the mean, starts sessions at exponentially distributed intervals
+ * and may stop using the app at any point. A session is a launch followed by
+ * foreground events and significant events a few minutes apart.
+ *
+ * The trace of a user only depends on the seed and the user's index, so
+ * every policy of a sweep sees the same population.
+ */
+public final class SyntheticTraces implements TraceSource {
+	static final long START = 1000L * Eligibility.DAY_MILLIS;
+	private static final long MINUTE = 60 * 1000L;
+
+	private final int mUsers;
+	private final long mSeed;
+	private final int mHorizonDays;
+	private final double mSessionsPerDay;
+	private final double mForegroundsPerSession;
+	private final double mEventsPerSession;
+	private final double mChurnPerDay;
+
+	/**
+	 * @param users The size of the population.
+	 * @param seed Seeds the random choices.
+	 * @param horizonDays How many days of usage are generated.
+	 * @param sessionsPerDay The mean number of sessions per day over all
+	 *            users.
+	 * @param foregroundsPerSession The mean number of foreground events
+	 *            after the launch of a session.
+	 * @param eventsPerSession The mean number of significant events per
+	 *            session.
+	 * @param churnPerDay The chance that a user stops using the app on any
+	 *            given day.
+	 */
+	public SyntheticTraces(int users, long seed, int horizonDays, double sessionsPerDay,
+			double foregroundsPerSession, double eventsPerSession, double churnPerDay) {
+		mUsers = users;
+		mSeed = seed;
+		mHorizonDays = horizonDays;
+		mSessionsPerDay = sessionsPerDay;
+		mForegroundsPerSession = foregroundsPerSession;
+		mEventsPerSession = eventsPerSession;
+		mChurnPerDay = churnPerDay;
+	}
+
+	public int users() {
+		return mUsers;
+	}
+
+	public String[] channelNames() {
+		return new String[0];
+	}
+
+	public void replay(int user, Listener listener) {
+		SplittableRandom random = random(mSeed, user);
+		double sessionsPerDay = mSessionsPerDay * exponential(random);
+		if (sessionsPerDay <= 0)
+			return;
+
+		long end = START + mHorizonDays * Eligibility.DAY_MILLIS;
+		long time = START;
+		boolean first = true;
+		for (;;) {
+			if (!first) {
+				double gapDays = exponential(random) / sessionsPerDay;
+				if (random.nextDouble() > Math.pow(1 - mChurnPerDay, gapDays))
+					return;
+				time += (long) (gapDays * Eligibility.DAY_MILLIS);
+			}
+			first = false;
+			if (time >= end)
+				return;
+
+			listener.onEvent(time, LAUNCH, -1);
+			int foregrounds = poisson(random, mForegroundsPerSession);
+			int events = poisson(random, mEventsPerSession);
+			while (foregrounds + events > 0) {
+				time += 1 + (long) (exponential(random) * 5 * MINUTE);
+				if (random.nextInt(foregrounds + events) < foregrounds) {
+					foregrounds--;
+					listener.onEvent(time, FOREGROUND, -1);
+				} else {
+					events--;
+					listener.onEvent(time, SIGNIFICANT_EVENT, -1);
+				}
+			}
+		}
+	}
+
+	static SplittableRandom random(long seed, int user) {
+		return new SplittableRandom(seed * 0x9e3779b97f4a7c15L + user);
+	}
+
+	/*
+	 * Exponentially distributed with a mean of 1.
+	 */
+	private static double exponential(SplittableRandom random) {
+		return -Math.log(1 - random.nextDouble());
+	}
+
+	private static int poisson(SplittableRandom random, double mean) {
+		double limit = Math.exp(-mean), product = random.nextDouble();
+		int count = 0;
+		while (product > limit) {
+			count++;
+			product *= random.nextDouble();
+		}
+		return count;
+	}
+}
@@ -0,0 +1,33 @@
+package com.ijsbrandslob.appirater.simulation;
+
+/**
+ * A population of users, each with a trace of timestamped usage events.
+ * Traces are replayed one user at a time, possibly from several threads at
+ * once, so implementations must not keep per-replay state.
+ */
+public interface TraceSource {
+	public static final int LAUNCH = 0;
+	public static final int FOREGROUND = 1;
+	public static final int SIGNIFICANT_EVENT = 2;
+
+	public interface Listener {
+		/**
+		 * Called for each event of a trace, in the order of time.
+		 * 
+		 * @param time The time of the event in milliseconds.
+		 * @param kind LAUNCH, FOREGROUND or SIGNIFICANT_EVENT.
+		 * @param channel For significant events, the index of the channel
+		 *            name in channelNames(), or -1 for a plain one.
+		 */
+		public void onEvent(long time, int kind, int channel);
+	}
+
+	public int users();
+
+	/**
+	 * @return The names of the event channels that appear in the traces.
+	 */
+	public String[] channelNames();
+
+	public void replay(int user, Listener listener);
+}
@@ -0,0 +1,19 @@
+package com.ijsbrandslob.appirater.simulation;
+
+import com.ijsbrandslob.appirater.core.Clock;
+
+/**
+ * A Clock set to the time of the event being replayed. Each simulated user
+ * has its own, so it is not thread-safe.
+ */
+final class VirtualClock implements Clock {
+	private long mNow;
+
+	public long currentTimeMillis() {
+		return mNow;
+	}
+
+	void set(long now) {
+		mNow = now;
+	}
+}
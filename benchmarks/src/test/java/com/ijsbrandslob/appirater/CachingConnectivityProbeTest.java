@@ -0,0 +1,103 @@
+package com.ijsbrandslob.appirater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class CachingConnectivityProbeTest {
+	private static class CountingProbe implements ConnectivityProbe {
+		final AtomicInteger calls = new AtomicInteger();
+		volatile boolean connected = true;
+
+		public boolean isConnected() {
+			calls.incrementAndGet();
+			return connected;
+		}
+	}
+
+	@Test
+	public void reusesTheAnswerWithinTheTtl() {
+		CountingProbe probe = new CountingProbe();
+		CachingConnectivityProbe caching = new CachingConnectivityProbe(probe, 60000);
+
+		assertTrue(caching.isConnected());
+		probe.connected = false;
+		assertTrue(caching.isConnected());
+		assertEquals(1, probe.calls.get());
+	}
+
+	@Test
+	public void asksAgainOnceTheTtlPassed() throws InterruptedException {
+		CountingProbe probe = new CountingProbe();
+		CachingConnectivityProbe caching = new CachingConnectivityProbe(probe, 1);
+
+		assertTrue(caching.isConnected());
+		probe.connected = false;
+		Thread.sleep(10);
+		assertFalse(caching.isConnected());
+		assertEquals(2, probe.calls.get());
+	}
+
+	@Test
+	public void asksEveryTimeWithoutTtl() {
+		CountingProbe probe = new CountingProbe();
+		CachingConnectivityProbe caching = new CachingConnectivityProbe(probe, 0);
+
+		caching.isConnected();
+		caching.isConnected();
+		caching.isConnected();
+		assertEquals(3, probe.calls.get());
+	}
+
+	@Test
+	public void concurrentCallersShareOneCheck() throws Exception {
+		final AtomicInteger calls = new AtomicInteger();
+		final CountDownLatch checking = new CountDownLatch(1);
+		final CountDownLatch answer = new CountDownLatch(1);
+		final CachingConnectivityProbe caching = new CachingConnectivityProbe(
+				new ConnectivityProbe() {
+					public boolean isConnected() {
+						calls.incrementAndGet();
+						checking.countDown();
+						try {
+							answer.await();
+						} catch (InterruptedException ex) {
+							Thread.currentThread().interrupt();
+						}
+						return true;
+					}
+				}, 60000);
+		Callable<Boolean> ask = new Callable<Boolean>() {
+			public Boolean call() {
+				return caching.isConnected();
+			}
+		};
+
+		ExecutorService threads = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Boolean>> answers = new ArrayList<Future<Boolean>>();
+			answers.add(threads.submit(ask));
+			checking.await();
+			for (int i = 0; i < 3; ++i)
+				answers.add(threads.submit(ask));
+			answer.countDown();
+
+			for (Future<Boolean> connected : answers)
+				assertTrue(connected.get());
+			assertEquals(1, calls.get());
+		} finally {
+			threads.shutdownNow();
+		}
+	}
+}
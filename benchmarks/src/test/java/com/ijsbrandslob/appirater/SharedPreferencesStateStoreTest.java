@@ -0,0 +1,246 @@
+package com.ijsbrandslob.appirater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.junit.Test;
+
+import android.content.SharedPreferences;
+
+import com.ijsbrandslob.appirater.core.AppVersion;
+import com.ijsbrandslob.appirater.core.EventChannels;
+import com.ijsbrandslob.appirater.core.RatingState;
+import com.ijsbrandslob.appirater.core.StateRecord;
+
+public class SharedPreferencesStateStoreTest {
+	private static final long INSTALLED = AppVersion.key("2.1", 7);
+	private static final EventChannels CHANNELS = new EventChannels(new String[] { "share" },
+			new int[1], new int[] { 1 });
+
+	/*
+	 * SharedPreferences in a map. Edits are applied on commit.
+	 */
+	private static class MapPreferences implements SharedPreferences {
+		final Map<String, Object> values = new HashMap<String, Object>();
+		int commits;
+
+		public Map<String, ?> getAll() {
+			return new HashMap<String, Object>(values);
+		}
+
+		public String getString(String key, String defValue) {
+			return values.containsKey(key) ? (String) values.get(key) : defValue;
+		}
+
+		@SuppressWarnings("unchecked")
+		public Set<String> getStringSet(String key, Set<String> defValues) {
+			return values.containsKey(key) ? (Set<String>) values.get(key) : defValues;
+		}
+
+		public int getInt(String key, int defValue) {
+			return values.containsKey(key) ? (Integer) values.get(key) : defValue;
+		}
+
+		public long getLong(String key, long defValue) {
+			return values.containsKey(key) ? (Long) values.get(key) : defValue;
+		}
+
+		public float getFloat(String key, float defValue) {
+			return values.containsKey(key) ? (Float) values.get(key) : defValue;
+		}
+
+		public boolean getBoolean(String key, boolean defValue) {
+			return values.containsKey(key) ? (Boolean) values.get(key) : defValue;
+		}
+
+		public boolean contains(String key) {
+			return values.containsKey(key);
+		}
+
+		public Editor edit() {
+			return new MapEditor();
+		}
+
+		public void registerOnSharedPreferenceChangeListener(
+				OnSharedPreferenceChangeListener listener) {
+		}
+
+		public void unregisterOnSharedPreferenceChangeListener(
+				OnSharedPreferenceChangeListener listener) {
+		}
+
+		private class MapEditor implements Editor {
+			private final Map<String, Object> mChanges = new HashMap<String, Object>();
+
+			public Editor putString(String key, String value) {
+				mChanges.put(key, value);
+				return this;
+			}
+
+			public Editor putStringSet(String key, Set<String> values) {
+				mChanges.put(key, values);
+				return this;
+			}
+
+			public Editor putInt(String key, int value) {
+				mChanges.put(key, value);
+				return this;
+			}
+
+			public Editor putLong(String key, long value) {
+				mChanges.put(key, value);
+				return this;
+			}
+
+			public Editor putFloat(String key, float value) {
+				mChanges.put(key, value);
+				return this;
+			}
+
+			public Editor putBoolean(String key, boolean value) {
+				mChanges.put(key, value);
+				return this;
+			}
+
+			public Editor remove(String key) {
+				mChanges.put(key, null);
+				return this;
+			}
+
+			public Editor clear() {
+				values.clear();
+				return this;
+			}
+
+			public boolean commit() {
+				for (Map.Entry<String, Object> change : mChanges.entrySet()) {
+					if (change.getValue() != null)
+						values.put(change.getKey(), change.getValue());
+					else
+						values.remove(change.getKey());
+				}
+				commits++;
+				return true;
+			}
+
+			public void apply() {
+				commit();
+			}
+		}
+	}
+
+	private static MapPreferences legacyPreferences(String versionName) {
+		MapPreferences prefs = new MapPreferences();
+		prefs.values.put(SharedPreferencesStateStore.APPIRATER_FIRST_USE_DATE, 5000L);
+		prefs.values.put(SharedPreferencesStateStore.APPIRATER_USE_COUNT, 12);
+		prefs.values.put(SharedPreferencesStateStore.APPIRATER_DECLINED_TO_RATE, true);
+		prefs.values.put(SharedPreferencesStateStore.APPIRATER_CURRENT_VERSION_NAME, versionName);
+		prefs.values.put(SharedPreferencesStateStore.APPIRATER_CHANNEL_EVENT_COUNT + "share", 4);
+		return prefs;
+	}
+
+	@Test
+	public void migratesTheKeysOfOlderReleases() {
+		MapPreferences prefs = legacyPreferences("2.1");
+		SharedPreferencesStateStore store = new SharedPreferencesStateStore(prefs, INSTALLED);
+
+		RatingState state = store.load();
+		int[] counts = new int[1];
+		store.loadEventCounts(CHANNELS, counts);
+		assertEquals(5000, state.firstUseDate);
+		assertEquals(12, state.useCount);
+		assertTrue(state.declinedToRate);
+		assertEquals(4, counts[0]);
+
+		assertNotNull(StateRecord.decode(prefs.getString(
+				SharedPreferencesStateStore.APPIRATER_STATE, null)));
+		assertEquals(1, prefs.values.size());
+		assertEquals(1, prefs.commits);
+	}
+
+	@Test
+	public void storedNameOfTheInstalledVersionTakesItsCode() {
+		SharedPreferencesStateStore store = new SharedPreferencesStateStore(
+				legacyPreferences("2.1"), INSTALLED);
+		RatingState state = store.load();
+
+		assertEquals(INSTALLED, state.currentVersion);
+		assertTrue(!AppVersion.isNewVersion(state.currentVersion, INSTALLED,
+				AppVersion.Granularity.BUILD_CODE));
+	}
+
+	@Test
+	public void storedNameOfAnotherVersionIsANewVersion() {
+		SharedPreferencesStateStore store = new SharedPreferencesStateStore(
+				legacyPreferences("2.0"), INSTALLED);
+		RatingState state = store.load();
+
+		assertEquals(AppVersion.key("2.0", 0), state.currentVersion);
+		assertTrue(AppVersion.isNewVersion(state.currentVersion, INSTALLED,
+				AppVersion.Granularity.MINOR));
+	}
+
+	@Test
+	public void damagedRecordFallsBackToTheKeysOfOlderReleases() {
+		MapPreferences prefs = legacyPreferences("2.1");
+		prefs.values.put(SharedPreferencesStateStore.APPIRATER_STATE, "1;uses=99;crc=0");
+		SharedPreferencesStateStore store = new SharedPreferencesStateStore(prefs, INSTALLED);
+
+		assertEquals(12, store.load().useCount);
+		assertEquals(12, StateRecord.decode(prefs.getString(
+				SharedPreferencesStateStore.APPIRATER_STATE, null)).state().useCount);
+		assertFalse(prefs.contains(SharedPreferencesStateStore.APPIRATER_USE_COUNT));
+	}
+
+	@Test
+	public void writesUpdatesAsOneRecord() {
+		MapPreferences prefs = new MapPreferences();
+		SharedPreferencesStateStore store = new SharedPreferencesStateStore(prefs, INSTALLED);
+		assertNull(store.load());
+
+		store.save(RatingState.EMPTY.withFirstUseDate(5000).withUses(2), RatingState.ALL_FIELDS);
+		store.saveEventCounts(CHANNELS, new int[] { 3 });
+
+		SharedPreferencesStateStore reopened = new SharedPreferencesStateStore(prefs, INSTALLED);
+		int[] counts = new int[1];
+		assertEquals(2, reopened.load().useCount);
+		reopened.loadEventCounts(CHANNELS, counts);
+		assertEquals(3, counts[0]);
+		assertEquals(1, prefs.values.size());
+	}
+
+	@Test
+	public void newerFormatKeepsTheEntriesItDoesNotKnow() {
+		String encoded = withCrc("2;first=5000;uses=5;events=1.5;c:share=3;more=1;");
+
+		MapPreferences prefs = new MapPreferences();
+		prefs.values.put(SharedPreferencesStateStore.APPIRATER_STATE, encoded);
+		SharedPreferencesStateStore store = new SharedPreferencesStateStore(prefs, INSTALLED);
+
+		RatingState state = store.load();
+		int[] counts = new int[1];
+		store.loadEventCounts(CHANNELS, counts);
+		assertEquals(5, state.useCount);
+		assertEquals(3, counts[0]);
+
+		store.save(state.withUses(1), RatingState.FIELD_USE_COUNT);
+		store.saveEventCounts(CHANNELS, new int[] { 4 });
+		assertEquals(withCrc("2;first=5000;uses=6;c:share=4;events=1.5;more=1;"),
+				prefs.getString(SharedPreferencesStateStore.APPIRATER_STATE, null));
+	}
+
+	private static String withCrc(String entries) {
+		CRC32 crc = new CRC32();
+		crc.update(entries.getBytes(Charset.forName("UTF-8")));
+		return entries + "crc=" + Long.toHexString(crc.getValue());
+	}
+}
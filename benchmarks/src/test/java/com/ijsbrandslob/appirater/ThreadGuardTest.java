@@ -0,0 +1,112 @@
+package com.ijsbrandslob.appirater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import com.ijsbrandslob.appirater.core.EventChannels;
+import com.ijsbrandslob.appirater.core.RatingState;
+import com.ijsbrandslob.appirater.core.RatingStateStore;
+
+public class ThreadGuardTest {
+	/*
+	 * Counts the saves that got through.
+	 */
+	private static class CountingStore implements RatingStateStore {
+		int saves;
+
+		public RatingState load() {
+			return null;
+		}
+
+		public void save(RatingState state, int fields) {
+			saves++;
+		}
+
+		public void loadEventCounts(EventChannels channels, int[] counts) {
+		}
+
+		public void saveEventCounts(EventChannels channels, int[] counts) {
+		}
+
+		public void setChangeListener(ChangeListener listener) {
+		}
+	}
+
+	private boolean mOnMainThread = true;
+
+	private final ThreadGuard.MainThread mMainThread = new ThreadGuard.MainThread() {
+		public boolean isCurrent() {
+			return mOnMainThread;
+		}
+	};
+
+	@Test
+	public void failsFastBeforeAnOperationStarts() {
+		ThreadGuard guard = new ThreadGuard(true, false, mMainThread);
+		try {
+			guard.checkBefore(ThreadGuard.Access.DISK_WRITE, "flush");
+			fail("Expected an IllegalStateException");
+		} catch (IllegalStateException ex) {
+			// Expected
+		}
+
+		assertEquals(1, guard.count());
+		ThreadGuard.Violation violation = guard.violations().get(0);
+		assertEquals(ThreadGuard.Access.DISK_WRITE, violation.access);
+		assertEquals("flush", violation.operation);
+		assertEquals(0, violation.nanos);
+	}
+
+	@Test
+	public void failsFastBeforeTheStoreIsReached() {
+		CountingStore store = new CountingStore();
+		RatingStateStore guarded = new ThreadGuard(true, false, mMainThread).guard(store);
+		try {
+			guarded.save(RatingState.EMPTY, RatingState.ALL_FIELDS);
+			fail("Expected an IllegalStateException");
+		} catch (IllegalStateException ex) {
+			// Expected
+		}
+		assertEquals(0, store.saves);
+	}
+
+	@Test
+	public void allowsEverythingOffTheMainThread() {
+		mOnMainThread = false;
+		CountingStore store = new CountingStore();
+		ThreadGuard guard = new ThreadGuard(true, false, mMainThread);
+		guard.checkBefore(ThreadGuard.Access.DISK_WRITE, "flush");
+		guard.guard(store).save(RatingState.EMPTY, RatingState.ALL_FIELDS);
+
+		assertEquals(1, store.saves);
+		assertEquals(0, guard.count());
+	}
+
+	@Test
+	public void recordsInsteadOfFailingWhenNotFailingFast() {
+		CountingStore store = new CountingStore();
+		ThreadGuard guard = new ThreadGuard(false, false, mMainThread);
+		guard.checkBefore(ThreadGuard.Access.DISK_WRITE, "flush");
+		guard.guard(store).save(RatingState.EMPTY, RatingState.ALL_FIELDS);
+
+		assertEquals(1, store.saves);
+		assertEquals(1, guard.count());
+		assertEquals("save", guard.violations().get(0).operation);
+		assertTrue(guard.report().startsWith("DISK_WRITE save on the main thread"));
+	}
+
+	@Test
+	public void keepsOnlyTheFirstViolations() {
+		ThreadGuard guard = new ThreadGuard(false, false, mMainThread);
+		RatingStateStore guarded = guard.guard(new CountingStore());
+		for (int i = 0; i < ThreadGuard.MAX_VIOLATIONS + 5; ++i)
+			guarded.load();
+
+		assertEquals(ThreadGuard.MAX_VIOLATIONS + 5, guard.count());
+		assertEquals(ThreadGuard.MAX_VIOLATIONS, guard.violations().size());
+		assertTrue(guard.report().endsWith("5 more\n"));
+	}
+}
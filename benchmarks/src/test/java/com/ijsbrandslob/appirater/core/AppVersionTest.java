@@ -0,0 +1,65 @@
+package com.ijsbrandslob.appirater.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AppVersionTest {
+	private static final long INSTALLED = AppVersion.key("2.3.4", 57);
+
+	@Test
+	public void keyPacksNameAndCode() {
+		assertEquals("2.3.4 (57)", AppVersion.toString(INSTALLED));
+		assertEquals("2.10.0 (0)", AppVersion.toString(AppVersion.key("2.10", 0)));
+		assertEquals("1.2.3 (0)", AppVersion.toString(AppVersion.key("1.2beta.3-rc1", 0)));
+		assertEquals("0.0.0 (0)", AppVersion.toString(AppVersion.key(null, 0)));
+		assertEquals("4095.1023.1023 (0)",
+				AppVersion.toString(AppVersion.key("99999.99999.99999", 0)));
+		assertTrue(AppVersion.key("2.10", 0) > AppVersion.key("2.9", 0));
+	}
+
+	@Test
+	public void majorComparesTheMajorNumber() {
+		assertNewAt(AppVersion.Granularity.MAJOR, "3.0.0", 1);
+		assertSameAt(AppVersion.Granularity.MAJOR, "2.4.0", 57);
+		assertSameAt(AppVersion.Granularity.MAJOR, "2.3.5", 58);
+	}
+
+	@Test
+	public void minorComparesMajorAndMinor() {
+		assertNewAt(AppVersion.Granularity.MINOR, "3.3.4", 57);
+		assertNewAt(AppVersion.Granularity.MINOR, "2.4.0", 57);
+		assertSameAt(AppVersion.Granularity.MINOR, "2.3.5", 58);
+	}
+
+	@Test
+	public void patchComparesTheWholeName() {
+		assertNewAt(AppVersion.Granularity.PATCH, "2.4.4", 57);
+		assertNewAt(AppVersion.Granularity.PATCH, "2.3.5", 57);
+		assertSameAt(AppVersion.Granularity.PATCH, "2.3.4", 58);
+	}
+
+	@Test
+	public void buildCodeComparesNameAndCode() {
+		assertNewAt(AppVersion.Granularity.BUILD_CODE, "2.3.4", 58);
+		assertNewAt(AppVersion.Granularity.BUILD_CODE, "2.3.5", 57);
+		assertNewAt(AppVersion.Granularity.BUILD_CODE, "3.3.4", 57);
+		assertSameAt(AppVersion.Granularity.BUILD_CODE, "2.3.4", 57);
+	}
+
+	@Test
+	public void unknownStoredVersionIsAlwaysNew() {
+		for (AppVersion.Granularity granularity : AppVersion.Granularity.values())
+			assertTrue(AppVersion.isNewVersion(AppVersion.NONE, INSTALLED, granularity));
+	}
+
+	private static void assertNewAt(AppVersion.Granularity granularity, String name, int code) {
+		assertTrue(AppVersion.isNewVersion(AppVersion.key(name, code), INSTALLED, granularity));
+	}
+
+	private static void assertSameAt(AppVersion.Granularity granularity, String name, int code) {
+		assertFalse(AppVersion.isNewVersion(AppVersion.key(name, code), INSTALLED, granularity));
+	}
+}
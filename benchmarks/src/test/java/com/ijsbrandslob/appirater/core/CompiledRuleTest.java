@@ -0,0 +1,133 @@
+package com.ijsbrandslob.appirater.core;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CompiledRuleTest {
+	private static final long NOW = 1000L * Eligibility.DAY_MILLIS;
+	private static final EventChannels CHANNELS = new EventChannels(new String[] { "purchase",
+			"share" }, new int[2], new int[] { 5, 1 });
+
+	/*
+	 * A store with nothing in it, so the engine starts from an empty state.
+	 */
+	static class EmptyStore implements RatingStateStore {
+		public RatingState load() {
+			return null;
+		}
+
+		public void save(RatingState state, int fields) {
+		}
+
+		public void loadEventCounts(EventChannels channels, int[] counts) {
+		}
+
+		public void saveEventCounts(EventChannels channels, int[] counts) {
+		}
+
+		public void setChangeListener(ChangeListener listener) {
+		}
+	}
+
+	private RatingEngine mEngine;
+	private long mLastCrash;
+
+	private final RatingRule.Input mLastCrashInput = new RatingRule.Input() {
+		public long get() {
+			return mLastCrash;
+		}
+	};
+
+	@Before
+	public void setUp() {
+		mEngine = new RatingEngine(new RatingPolicy(15, 20, 1, -1, AppVersion.Granularity.MINOR,
+				CHANNELS, null, false), new EmptyStore(), new ManualClock(NOW));
+		mEngine.load(AppVersion.key("1.0", 1));
+		mLastCrash = -1;
+	}
+
+	private boolean matches(RatingRule rule, RatingState state) {
+		return new CompiledRule(rule, CHANNELS).matches(mEngine, state, NOW);
+	}
+
+	private static RatingState usedFor(int days, int uses) {
+		return RatingState.EMPTY.withFirstUseDate(NOW - days * Eligibility.DAY_MILLIS)
+				.withUses(uses);
+	}
+
+	@Test
+	public void andNeedsBothSides() {
+		RatingRule rule = RatingRule.uses().atLeast(10).and(RatingRule.days().atLeast(7));
+
+		assertTrue(matches(rule, usedFor(7, 10)));
+		assertFalse(matches(rule, usedFor(7, 9)));
+		assertFalse(matches(rule, usedFor(6, 10)));
+	}
+
+	@Test
+	public void orNeedsEitherSide() {
+		RatingRule rule = RatingRule.uses().atLeast(10).or(RatingRule.events("purchase").atLeast(1));
+
+		assertFalse(matches(rule, usedFor(0, 9)));
+		assertTrue(matches(rule, usedFor(0, 10)));
+		mEngine.recordSignificantEvent(CHANNELS.id("purchase"));
+		assertTrue(matches(rule, usedFor(0, 9)));
+	}
+
+	@Test
+	public void comparisonsIncludeOrExcludeTheirBound() {
+		RatingState state = usedFor(0, 10);
+
+		assertTrue(matches(RatingRule.uses().atLeast(10), state));
+		assertTrue(matches(RatingRule.uses().atMost(10), state));
+		assertFalse(matches(RatingRule.uses().greaterThan(10), state));
+		assertFalse(matches(RatingRule.uses().lessThan(10), state));
+		assertTrue(matches(RatingRule.uses().greaterThan(9), state));
+		assertTrue(matches(RatingRule.uses().lessThan(11), state));
+	}
+
+	@Test
+	public void significantEventsCountChannelsByTheirWeight() {
+		RatingRule rule = RatingRule.significantEvents().atLeast(8);
+		RatingState state = usedFor(0, 0).withSignificantEvents(2);
+
+		mEngine.recordSignificantEvent(CHANNELS.id("purchase"));
+		assertFalse(matches(rule, state));
+		mEngine.recordSignificantEvent(CHANNELS.id("share"));
+		assertTrue(matches(rule, state));
+	}
+
+	@Test
+	public void daysSinceAnInputThatNeverHappenedIsUnbounded() {
+		RatingRule rule = RatingRule.daysSince(mLastCrashInput).lessThan(3).not();
+		RatingState state = usedFor(0, 0);
+
+		assertTrue(matches(rule, state));
+		mLastCrash = NOW - 2 * Eligibility.DAY_MILLIS;
+		assertFalse(matches(rule, state));
+		mLastCrash = NOW - 3 * Eligibility.DAY_MILLIS;
+		assertTrue(matches(rule, state));
+	}
+
+	@Test
+	public void reminderAndChoicesAreReadFromTheState() {
+		RatingState state = usedFor(10, 0);
+
+		assertTrue(matches(RatingRule.daysSinceReminder().atLeast(1000), state));
+		state = state.withReminderRequestDate(NOW - 4 * Eligibility.DAY_MILLIS);
+		assertTrue(matches(RatingRule.daysSinceReminder().atLeast(4), state));
+		assertFalse(matches(RatingRule.daysSinceReminder().atLeast(5), state));
+
+		assertFalse(matches(RatingRule.rated().or(RatingRule.declined()), state));
+		assertTrue(matches(RatingRule.rated(), state.withRatedCurrentVersion(true)));
+		assertTrue(matches(RatingRule.declined(), state.withDeclinedToRate(true)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownChannelIsRejected() {
+		new CompiledRule(RatingRule.events("download").atLeast(1), CHANNELS);
+	}
+}
@@ -0,0 +1,44 @@
+package com.ijsbrandslob.appirater.core;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class EligibilityTest {
+	private static final EventChannels NO_CHANNELS = new EventChannels(new String[0],
+			new int[0], new int[0]);
+	private static final long FIRST_USE = 1000L * Eligibility.DAY_MILLIS;
+
+	private static RatingPolicy policy(int daysUntilPrompt, int timeBeforeReminding) {
+		return new RatingPolicy(daysUntilPrompt, 0, timeBeforeReminding, 0,
+				AppVersion.Granularity.MINOR, NO_CHANNELS, null, false);
+	}
+
+	@Test
+	public void delaysOfMoreThan24DaysDoNotOverflow() {
+		RatingState state = RatingState.EMPTY.withFirstUseDate(FIRST_USE);
+
+		assertEquals(FIRST_USE + 30 * Eligibility.DAY_MILLIS,
+				Eligibility.compute(state, policy(30, 1)).eligibleAt);
+		assertEquals(FIRST_USE + 365 * Eligibility.DAY_MILLIS,
+				Eligibility.compute(state, policy(365, 1)).eligibleAt);
+	}
+
+	@Test
+	public void reminderDelaysOfMoreThan24DaysDoNotOverflow() {
+		long reminded = FIRST_USE + 10 * Eligibility.DAY_MILLIS;
+		RatingState state = RatingState.EMPTY.withFirstUseDate(FIRST_USE)
+				.withReminderRequestDate(reminded);
+
+		assertEquals(reminded + 60 * Eligibility.DAY_MILLIS,
+				Eligibility.compute(state, policy(15, 60)).eligibleAt);
+	}
+
+	@Test
+	public void delaysPastTheEndOfTimeAreNever() {
+		RatingState state = RatingState.EMPTY.withFirstUseDate(Eligibility.NEVER - 1000);
+
+		assertEquals(Eligibility.NEVER,
+				Eligibility.compute(state, policy(Integer.MAX_VALUE, 1)).eligibleAt);
+	}
+}
@@ -0,0 +1,115 @@
+package com.ijsbrandslob.appirater.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class EventAccumulatorTest {
+	private static final long WINDOW = 1000;
+	private static final int BATCH = 256;
+	private static final EventChannels CHANNELS = new EventChannels(new String[] { "share" },
+			new int[1], new int[] { 1 });
+
+	private RatingEngine mEngine;
+	private final List<Long> mDrainDelays = Collections.synchronizedList(new ArrayList<Long>());
+
+	@Before
+	public void setUp() {
+		mEngine = new RatingEngine(new RatingPolicy(15, 20, 1, -1, AppVersion.Granularity.MINOR,
+				CHANNELS, null, false), new CompiledRuleTest.EmptyStore(),
+				new ManualClock(1000L * Eligibility.DAY_MILLIS));
+		mEngine.load(AppVersion.key("1.0", 1));
+	}
+
+	/*
+	 * Remembers the drains asked for; the test drains itself.
+	 */
+	private EventAccumulator recordingDrains() {
+		return new EventAccumulator(CHANNELS.size(), WINDOW, BATCH,
+				new EventAccumulator.DrainScheduler() {
+					public void scheduleDrain(long delayMillis) {
+						mDrainDelays.add(delayMillis);
+					}
+				});
+	}
+
+	@Test
+	public void firstEventSchedulesADrainAfterTheWindow() {
+		EventAccumulator accumulator = recordingDrains();
+		accumulator.record();
+		accumulator.record(0);
+		accumulator.record();
+		assertEquals(Collections.singletonList(WINDOW), mDrainDelays);
+
+		assertTrue(accumulator.drainTo(mEngine));
+		assertEquals(2, mEngine.state().significantEventCount);
+		assertEquals(1, mEngine.eventCount(0));
+		assertFalse(accumulator.drainTo(mEngine));
+
+		// The next event opens a new window
+		accumulator.record();
+		assertEquals(2, mDrainDelays.size());
+		assertEquals(WINDOW, (long) mDrainDelays.get(1));
+	}
+
+	@Test
+	public void aFullBatchDrainsBeforeTheWindowEnds() {
+		EventAccumulator accumulator = recordingDrains();
+		int recorded = 0;
+		while (!mDrainDelays.contains(0L) && recorded < BATCH) {
+			accumulator.record(0);
+			++recorded;
+		}
+		assertTrue(mDrainDelays.contains(0L));
+
+		accumulator.drainTo(mEngine);
+		assertEquals(recorded, mEngine.eventCount(0));
+	}
+
+	@Test
+	public void drainsWhileRecordingLoseNoEvents() throws Exception {
+		// Drains right away, on whichever thread asks, like a scheduler
+		// that runs them while other threads keep recording
+		final EventAccumulator[] accumulator = new EventAccumulator[1];
+		accumulator[0] = new EventAccumulator(CHANNELS.size(), WINDOW, BATCH,
+				new EventAccumulator.DrainScheduler() {
+					public void scheduleDrain(long delayMillis) {
+						accumulator[0].drainTo(mEngine);
+					}
+				});
+
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; ++t) {
+			threads[t] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException ex) {
+						return;
+					}
+					for (int i = 0; i < 20000; ++i) {
+						accumulator[0].record();
+						accumulator[0].record(0);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		start.countDown();
+		for (Thread thread : threads)
+			thread.join();
+		accumulator[0].drainTo(mEngine);
+
+		assertEquals(80000, mEngine.state().significantEventCount);
+		assertEquals(80000, mEngine.eventCount(0));
+	}
+}
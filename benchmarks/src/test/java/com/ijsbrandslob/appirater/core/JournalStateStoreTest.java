@@ -0,0 +1,117 @@
+package com.ijsbrandslob.appirater.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JournalStateStoreTest {
+	// "Aa" and "BB" have the same hash code
+	static final EventChannels CHANNELS = new EventChannels(new String[] { "Aa", "BB",
+			"aankoop voltooid" }, new int[3], new int[] { 1, 1, 1 });
+	static final RatingState STATE = RatingState.EMPTY.withFirstUseDate(5000).withUses(3)
+			.withSignificantEvents(2);
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	@Test
+	public void emptyJournalLoadsNothing() throws Exception {
+		JournalStateStore store = new JournalStateStore(new File(mFolder.getRoot(), "journal"),
+				4096);
+		assertNull(store.load());
+	}
+
+	@Test
+	public void roundTripsStateAndCounts() throws Exception {
+		File file = new File(mFolder.getRoot(), "journal");
+		JournalStateStore store = new JournalStateStore(file, 4096);
+		store.load();
+		store.save(STATE, RatingState.ALL_FIELDS);
+		store.saveEventCounts(CHANNELS, new int[] { 4, 7, 10 });
+
+		JournalStateStore reopened = new JournalStateStore(file, 4096);
+		RatingState state = reopened.load();
+		int[] counts = new int[3];
+		reopened.loadEventCounts(CHANNELS, counts);
+
+		assertEquals(5000, state.firstUseDate);
+		assertEquals(3, state.useCount);
+		assertEquals(2, state.significantEventCount);
+		assertArrayEquals(new int[] { 4, 7, 10 }, counts);
+	}
+
+	@Test
+	public void keepsTheLatestValuesThroughCompaction() throws Exception {
+		File file = new File(mFolder.getRoot(), "journal");
+		JournalStateStore store = new JournalStateStore(file, 256);
+		store.load();
+		store.save(STATE, RatingState.ALL_FIELDS);
+		for (int i = 0; i < 500; ++i) {
+			store.save(STATE.withUses(i), RatingState.FIELD_USE_COUNT);
+			store.saveEventCounts(CHANNELS, new int[] { i, i + 1, i + 2 });
+		}
+
+		JournalStateStore reopened = new JournalStateStore(file, 256);
+		int[] counts = new int[3];
+		assertEquals(3 + 499, reopened.load().useCount);
+		reopened.loadEventCounts(CHANNELS, counts);
+		assertArrayEquals(new int[] { 499, 500, 501 }, counts);
+	}
+
+	@Test
+	public void dropsABatchTornAtTheTail() throws Exception {
+		File file = new File(mFolder.getRoot(), "journal");
+		JournalStateStore store = new JournalStateStore(file, 4096);
+		store.load();
+		store.save(STATE, RatingState.ALL_FIELDS);
+		long complete = file.length();
+		store.save(STATE.withUses(6).withSignificantEvents(4), RatingState.FIELD_USE_COUNT
+				| RatingState.FIELD_SIG_EVENT_COUNT);
+
+		// The first record of the batch made it to disk, half of the second
+		RandomAccessFile journal = new RandomAccessFile(file, "rw");
+		try {
+			journal.setLength(complete + JournalStateStore.RECORD_SIZE
+					+ JournalStateStore.RECORD_SIZE / 2);
+		} finally {
+			journal.close();
+		}
+
+		JournalStateStore reopened = new JournalStateStore(file, 4096);
+		RatingState state = reopened.load();
+		assertEquals(3, state.useCount);
+		assertEquals(2, state.significantEventCount);
+		assertEquals(complete, file.length());
+
+		// Writes go on after the last complete batch
+		reopened.save(state.withUses(1), RatingState.FIELD_USE_COUNT);
+		assertEquals(4, new JournalStateStore(file, 4096).load().useCount);
+	}
+
+	@Test
+	public void dropsARecordDamagedAtTheTail() throws Exception {
+		File file = new File(mFolder.getRoot(), "journal");
+		JournalStateStore store = new JournalStateStore(file, 4096);
+		store.load();
+		store.save(STATE, RatingState.ALL_FIELDS);
+		store.save(STATE.withUses(6), RatingState.FIELD_USE_COUNT);
+
+		// A write that reached the file size but not all of its bytes
+		RandomAccessFile journal = new RandomAccessFile(file, "rw");
+		try {
+			journal.seek(file.length() - 6);
+			journal.write(new byte[6]);
+		} finally {
+			journal.close();
+		}
+
+		assertEquals(3, new JournalStateStore(file, 4096).load().useCount);
+	}
+}
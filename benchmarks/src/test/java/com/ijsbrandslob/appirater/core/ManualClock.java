@@ -0,0 +1,20 @@
+package com.ijsbrandslob.appirater.core;
+
+/**
+ * A Clock that only moves when told to.
+ */
+public class ManualClock implements Clock {
+	private volatile long mNow;
+
+	public ManualClock(long now) {
+		mNow = now;
+	}
+
+	public long currentTimeMillis() {
+		return mNow;
+	}
+
+	public void advance(long millis) {
+		mNow += millis;
+	}
+}
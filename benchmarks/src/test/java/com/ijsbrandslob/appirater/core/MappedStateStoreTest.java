@@ -0,0 +1,104 @@
+package com.ijsbrandslob.appirater.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedStateStoreTest {
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	@Test
+	public void missingFileLoadsNothing() throws Exception {
+		assertNull(new MappedStateStore(new File(mFolder.getRoot(), "state")).load());
+	}
+
+	@Test
+	public void roundTripsStateAndCounts() throws Exception {
+		File file = new File(mFolder.getRoot(), "state");
+		MappedStateStore store = new MappedStateStore(file);
+		store.load();
+		store.save(JournalStateStoreTest.STATE, RatingState.ALL_FIELDS);
+		store.saveEventCounts(JournalStateStoreTest.CHANNELS, new int[] { 4, 7, 10 });
+		store.save(JournalStateStoreTest.STATE.withUses(1), RatingState.FIELD_USE_COUNT);
+
+		MappedStateStore reopened = new MappedStateStore(file);
+		RatingState state = reopened.load();
+		int[] counts = new int[3];
+		reopened.loadEventCounts(JournalStateStoreTest.CHANNELS, counts);
+
+		assertEquals(5000, state.firstUseDate);
+		assertEquals(4, state.useCount);
+		assertArrayEquals(new int[] { 4, 7, 10 }, counts);
+	}
+
+	@Test
+	public void keepsTheStateWhenTheChannelsChange() throws Exception {
+		File file = new File(mFolder.getRoot(), "state");
+		MappedStateStore store = new MappedStateStore(file);
+		store.load();
+		store.save(JournalStateStoreTest.STATE, RatingState.ALL_FIELDS);
+		store.saveEventCounts(JournalStateStoreTest.CHANNELS, new int[] { 4, 7, 10 });
+
+		EventChannels fewer = new EventChannels(new String[] { "BB" }, new int[1],
+				new int[] { 1 });
+		store.saveEventCounts(fewer, new int[] { 8 });
+
+		MappedStateStore reopened = new MappedStateStore(file);
+		int[] counts = new int[3];
+		assertEquals(3, reopened.load().useCount);
+		reopened.loadEventCounts(JournalStateStoreTest.CHANNELS, counts);
+		assertArrayEquals(new int[] { 0, 8, 0 }, counts);
+	}
+
+	@Test
+	public void fallsBackToTheOtherSlotWhenTheNewestIsDamaged() throws Exception {
+		File file = new File(mFolder.getRoot(), "state");
+		MappedStateStore store = new MappedStateStore(file);
+		store.load();
+		store.save(JournalStateStoreTest.STATE, RatingState.ALL_FIELDS);
+		store.saveEventCounts(JournalStateStoreTest.CHANNELS, new int[] { 4, 7, 10 });
+		store.saveEventCounts(JournalStateStoreTest.CHANNELS, new int[] { 5, 7, 10 });
+
+		// Flip a byte of the event counts in the slot with the highest sequence
+		RandomAccessFile mapped = new RandomAccessFile(file, "rw");
+		try {
+			mapped.seek(12);
+			int names = mapped.readInt();
+			long slotSize = (mapped.length() - MappedStateStore.HEADER_SIZE - names) / 2;
+			long slot0 = MappedStateStore.HEADER_SIZE + names;
+			mapped.seek(slot0);
+			long sequence0 = mapped.readLong();
+			mapped.seek(slot0 + slotSize);
+			long newest = mapped.readLong() > sequence0 ? slot0 + slotSize : slot0;
+			mapped.seek(newest + slotSize - 12);
+			int value = mapped.read();
+			mapped.seek(newest + slotSize - 12);
+			mapped.write(value ^ 0xff);
+		} finally {
+			mapped.close();
+		}
+
+		MappedStateStore reopened = new MappedStateStore(file);
+		int[] counts = new int[3];
+		RatingState state = reopened.load();
+		reopened.loadEventCounts(JournalStateStoreTest.CHANNELS, counts);
+		assertEquals(3, state.useCount);
+		assertArrayEquals(new int[] { 4, 7, 10 }, counts);
+
+		// The next write replaces the damaged slot
+		reopened.save(state.withUses(1), RatingState.FIELD_USE_COUNT);
+		counts = new int[3];
+		MappedStateStore again = new MappedStateStore(file);
+		assertEquals(4, again.load().useCount);
+		again.loadEventCounts(JournalStateStoreTest.CHANNELS, counts);
+		assertArrayEquals(new int[] { 4, 7, 10 }, counts);
+	}
+}
@@ -0,0 +1,247 @@
+package com.ijsbrandslob.appirater.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RatingEngineTest {
+	private static final long VERSION = AppVersion.key("1.0", 1);
+	private static final EventChannels CHANNELS = new EventChannels(new String[] { "share" },
+			new int[] { 3 }, new int[] { 1 });
+
+	/*
+	 * Records the fields of every write and fails the next ones when asked.
+	 */
+	private static class RecordingStore implements RatingStateStore {
+		final List<Integer> savedFields = new ArrayList<Integer>();
+		final List<int[]> savedCounts = new ArrayList<int[]>();
+		int failSaves;
+		int failCountSaves;
+
+		public RatingState load() {
+			return null;
+		}
+
+		public void save(RatingState state, int fields) {
+			if (failSaves > 0) {
+				failSaves--;
+				throw new IllegalStateException("save failed");
+			}
+			savedFields.add(fields);
+		}
+
+		public void loadEventCounts(EventChannels channels, int[] counts) {
+		}
+
+		public void saveEventCounts(EventChannels channels, int[] counts) {
+			if (failCountSaves > 0) {
+				failCountSaves--;
+				throw new IllegalStateException("saveEventCounts failed");
+			}
+			savedCounts.add(counts.clone());
+		}
+
+		public void setChangeListener(ChangeListener listener) {
+		}
+	}
+
+	private RecordingStore mStore;
+	private RatingEngine mEngine;
+	private int mScheduledWrites;
+
+	@Before
+	public void setUp() {
+		mStore = new RecordingStore();
+		mEngine = new RatingEngine(new RatingPolicy(15, 20, 1, -1, AppVersion.Granularity.MINOR,
+				CHANNELS, null, false), mStore, new ManualClock(1000L * Eligibility.DAY_MILLIS));
+		mEngine.setWriteScheduler(new RatingEngine.WriteScheduler() {
+			public void scheduleWrite() {
+				mScheduledWrites++;
+			}
+		});
+	}
+
+	@Test
+	public void flushBeforeLoadWritesNothing() {
+		mEngine.recordUses(1);
+		mEngine.flush();
+		assertTrue(mStore.savedFields.isEmpty());
+	}
+
+	@Test
+	public void flushWritesOnlyTheChangedFields() {
+		mEngine.load(VERSION);
+		mEngine.flush();
+		assertEquals(RatingState.ALL_FIELDS, (int) mStore.savedFields.get(0));
+
+		mEngine.recordUses(1);
+		mEngine.flush();
+		assertEquals(RatingState.FIELD_USE_COUNT, (int) mStore.savedFields.get(1));
+		assertEquals(0, mEngine.state().dirtyFields);
+
+		mEngine.flush();
+		assertEquals(2, mStore.savedFields.size());
+	}
+
+	@Test
+	public void flushWritesTheEventCountsOnlyWhenTheyChanged() {
+		mEngine.load(VERSION);
+		mEngine.flush();
+		int writes = mStore.savedCounts.size();
+
+		mEngine.recordSignificantEvent(0);
+		mEngine.flush();
+		assertEquals(writes + 1, mStore.savedCounts.size());
+		assertEquals(1, mStore.savedCounts.get(writes)[0]);
+
+		mEngine.flush();
+		assertEquals(writes + 1, mStore.savedCounts.size());
+	}
+
+	@Test
+	public void failedSaveKeepsTheFieldsDirty() {
+		mEngine.load(VERSION);
+		mEngine.flush();
+		mEngine.recordUses(1);
+		int scheduled = mScheduledWrites;
+
+		mStore.failSaves = 1;
+		try {
+			mEngine.flush();
+			fail("The store did not throw");
+		} catch (IllegalStateException ex) {
+			// Expected
+		}
+		assertEquals(RatingState.FIELD_USE_COUNT, mEngine.state().dirtyFields);
+		assertTrue(mScheduledWrites > scheduled);
+
+		mEngine.flush();
+		assertEquals(RatingState.FIELD_USE_COUNT,
+				(int) mStore.savedFields.get(mStore.savedFields.size() - 1));
+		assertEquals(0, mEngine.state().dirtyFields);
+	}
+
+	@Test
+	public void failedCountWriteKeepsTheCountsDirty() {
+		mEngine.load(VERSION);
+		mEngine.flush();
+		mEngine.recordSignificantEvent(0);
+		int writes = mStore.savedCounts.size();
+		int scheduled = mScheduledWrites;
+
+		mStore.failCountSaves = 1;
+		try {
+			mEngine.flush();
+			fail("The store did not throw");
+		} catch (IllegalStateException ex) {
+			// Expected
+		}
+		assertEquals(writes, mStore.savedCounts.size());
+		assertTrue(mScheduledWrites > scheduled);
+
+		mEngine.flush();
+		assertEquals(writes + 1, mStore.savedCounts.size());
+		assertEquals(1, mStore.savedCounts.get(writes)[0]);
+	}
+
+	@Test
+	public void setPolicyReplacesTheRatingConditions() {
+		mEngine.load(VERSION);
+		mEngine.recordUses(1);
+		mEngine.recordSignificantEvents(0, 3);
+		assertFalse(mEngine.ratingConditionsHaveBeenMet());
+
+		mEngine.setPolicy(new RatingPolicy(0, 1, 1, -1, AppVersion.Granularity.MINOR,
+				CHANNELS, null, false));
+		assertTrue(mEngine.ratingConditionsHaveBeenMet());
+		assertEquals(1, mEngine.policy().usesUntilPrompt);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setPolicyRejectsOtherEventChannels() {
+		mEngine.setPolicy(new RatingPolicy(15, 20, 1, -1, AppVersion.Granularity.MINOR,
+				new EventChannels(new String[] { "purchase" }, new int[] { 3 }, new int[] { 1 }),
+				null, false));
+	}
+
+	/*
+	 * Runs action on threads threads at once and waits for them.
+	 */
+	private static void runConcurrently(int threads, final Runnable action) throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] running = new Thread[threads];
+		for (int i = 0; i < threads; ++i) {
+			running[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException ex) {
+						return;
+					}
+					action.run();
+				}
+			});
+			running[i].start();
+		}
+		start.countDown();
+		for (Thread thread : running)
+			thread.join();
+	}
+
+	@Test
+	public void contendedUpdatesLoseNoIncrements() throws Exception {
+		mEngine.load(VERSION);
+		runConcurrently(8, new Runnable() {
+			public void run() {
+				for (int i = 0; i < 10000; ++i) {
+					mEngine.recordUses(1);
+					mEngine.recordSignificantEvent();
+					mEngine.recordSignificantEvent(0);
+					if (i % 1000 == 0)
+						mEngine.flush();
+				}
+			}
+		});
+
+		assertEquals(80000, mEngine.state().useCount);
+		assertEquals(80000, mEngine.state().significantEventCount);
+		assertEquals(80000, mEngine.eventCount(0));
+	}
+
+	@Test
+	public void eventsRecordedDuringTheFirstLoadAreNotLost() throws Exception {
+		final CountDownLatch recording = new CountDownLatch(4);
+		Thread loader = new Thread(new Runnable() {
+			public void run() {
+				try {
+					recording.await();
+				} catch (InterruptedException ex) {
+					return;
+				}
+				mEngine.load(VERSION);
+			}
+		});
+		loader.start();
+		runConcurrently(4, new Runnable() {
+			public void run() {
+				recording.countDown();
+				for (int i = 0; i < 20000; ++i) {
+					mEngine.recordSignificantEvent();
+					mEngine.recordSignificantEvent(0);
+				}
+			}
+		});
+		loader.join();
+
+		assertEquals(80000, mEngine.state().significantEventCount);
+		assertEquals(80000, mEngine.eventCount(0));
+	}
+}
@@ -0,0 +1,61 @@
+package com.ijsbrandslob.appirater.core;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SessionCounterTest {
+	private static final long TIMEOUT = 30000;
+
+	@Test
+	public void firstStartIsASession() {
+		assertTrue(new SessionCounter(TIMEOUT).activityStarted(1000));
+	}
+
+	@Test
+	public void quickBackgroundAndForegroundIsTheSameSession() {
+		SessionCounter sessions = new SessionCounter(TIMEOUT);
+		assertTrue(sessions.activityStarted(1000));
+		sessions.activityStopped(5000);
+
+		assertFalse(sessions.activityStarted(5000 + TIMEOUT - 1));
+	}
+
+	@Test
+	public void foregroundAfterTheTimeoutIsANewSession() {
+		SessionCounter sessions = new SessionCounter(TIMEOUT);
+		assertTrue(sessions.activityStarted(1000));
+		sessions.activityStopped(5000);
+
+		assertTrue(sessions.activityStarted(5000 + TIMEOUT));
+	}
+
+	@Test
+	public void activitiesStartingEachOtherAreTheSameSession() {
+		SessionCounter sessions = new SessionCounter(TIMEOUT);
+		assertTrue(sessions.activityStarted(1000));
+
+		// The next Activity starts before the first one stops
+		assertFalse(sessions.activityStarted(2000));
+		sessions.activityStopped(2100);
+		assertFalse(sessions.activityStarted(100000));
+		sessions.activityStopped(100100);
+		sessions.activityStopped(100200);
+
+		// Only stopping the last one starts the timeout
+		assertFalse(sessions.activityStarted(100200 + TIMEOUT - 1));
+		sessions.activityStopped(200000);
+		assertTrue(sessions.activityStarted(200000 + TIMEOUT));
+	}
+
+	@Test
+	public void stopWithoutStartIsIgnored() {
+		SessionCounter sessions = new SessionCounter(TIMEOUT);
+		sessions.activityStopped(1000);
+		assertTrue(sessions.activityStarted(2000));
+		sessions.activityStopped(3000);
+		sessions.activityStopped(3500);
+		assertFalse(sessions.activityStarted(4000));
+	}
+}
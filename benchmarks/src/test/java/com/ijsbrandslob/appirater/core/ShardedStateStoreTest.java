@@ -0,0 +1,108 @@
+package com.ijsbrandslob.appirater.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ShardedStateStoreTest {
+	private static final EventChannels CHANNELS = JournalStateStoreTest.CHANNELS;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	@Test
+	public void emptyDirectoryLoadsNothing() throws Exception {
+		assertNull(new ShardedStateStore(mFolder.getRoot(), "main").load());
+	}
+
+	@Test
+	public void countsOfAllProcessesAddUp() throws Exception {
+		File directory = mFolder.getRoot();
+		ShardedStateStore main = new ShardedStateStore(directory, "main");
+		main.load();
+		main.save(JournalStateStoreTest.STATE, RatingState.ALL_FIELDS);
+		main.loadEventCounts(CHANNELS, new int[3]);
+		main.saveEventCounts(CHANNELS, new int[] { 3, 7, 1 });
+
+		ShardedStateStore sync = new ShardedStateStore(directory, "sync");
+		RatingState state = sync.load();
+		int[] counts = new int[3];
+		sync.loadEventCounts(CHANNELS, counts);
+		assertArrayEquals(new int[] { 3, 7, 1 }, counts);
+		sync.save(state.withUses(2), RatingState.FIELD_USE_COUNT);
+		sync.saveEventCounts(CHANNELS, new int[] { 4, 9, 1 });
+
+		ShardedStateStore reopened = new ShardedStateStore(directory, "main");
+		state = reopened.load();
+		counts = new int[3];
+		reopened.loadEventCounts(CHANNELS, counts);
+		assertEquals(5, state.useCount);
+		assertEquals(5000, state.firstUseDate);
+		assertArrayEquals(new int[] { 4, 9, 1 }, counts);
+	}
+
+	@Test
+	public void latestWriteWinsForOtherFields() throws Exception {
+		File directory = mFolder.getRoot();
+		ShardedStateStore main = new ShardedStateStore(directory, "main");
+		main.load();
+		main.save(JournalStateStoreTest.STATE, RatingState.ALL_FIELDS);
+
+		ShardedStateStore sync = new ShardedStateStore(directory, "sync");
+		sync.load();
+		sync.save(JournalStateStoreTest.STATE.withDeclinedToRate(true),
+				RatingState.FIELD_DECLINED_TO_RATE);
+
+		assertEquals(true, new ShardedStateStore(directory, "main").load().declinedToRate);
+	}
+
+	@Test
+	public void processesResettingForTheSameVersionStartFromZero() throws Exception {
+		File directory = mFolder.getRoot();
+		ManualClock clock = new ManualClock(10000);
+		long oldVersion = AppVersion.key("1.0", 1);
+		long newVersion = AppVersion.key("2.0", 2);
+		RatingState old = JournalStateStoreTest.STATE.resetForVersion(oldVersion);
+
+		ShardedStateStore main = new ShardedStateStore(directory, "main", clock);
+		main.load();
+		main.save(old.withUses(30), RatingState.ALL_FIELDS);
+		main.saveEventCounts(CHANNELS, new int[] { 3, 7, 1 });
+		ShardedStateStore sync = new ShardedStateStore(directory, "sync", clock);
+		sync.load();
+		sync.save(old.withUses(50), RatingState.FIELD_USE_COUNT);
+		sync.saveEventCounts(CHANNELS, new int[] { 4, 9, 1 });
+
+		// Both see 50 uses, then both reset
+		RatingState mainState = main.load();
+		RatingState syncState = sync.load();
+		assertEquals(50, mainState.useCount);
+		assertEquals(50, syncState.useCount);
+		clock.advance(1000);
+		mainState = mainState.resetForVersion(newVersion);
+		main.save(mainState, RatingState.ALL_FIELDS);
+		main.saveEventCounts(CHANNELS, new int[3]);
+		clock.advance(1000);
+		sync.save(syncState.resetForVersion(newVersion).withUses(1), RatingState.ALL_FIELDS);
+		sync.saveEventCounts(CHANNELS, new int[] { 0, 1, 0 });
+
+		ShardedStateStore reopened = new ShardedStateStore(directory, "main", clock);
+		RatingState state = reopened.load();
+		int[] counts = new int[3];
+		reopened.loadEventCounts(CHANNELS, counts);
+		assertEquals(newVersion, state.currentVersion);
+		assertEquals(1, state.useCount);
+		assertEquals(0, state.significantEventCount);
+		assertArrayEquals(new int[] { 0, 1, 0 }, counts);
+
+		// Counting goes on from the new version
+		main.save(mainState.withUses(1), RatingState.FIELD_USE_COUNT);
+		assertEquals(2, new ShardedStateStore(directory, "sync", clock).load().useCount);
+	}
+}
@@ -0,0 +1,75 @@
+package com.ijsbrandslob.appirater.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+import org.junit.Test;
+
+public class StateRecordTest {
+	@Test
+	public void roundTripsFieldsAndCounts() {
+		StateRecord record = new StateRecord();
+		record.setState(JournalStateStoreTest.STATE, RatingState.FIELD_FIRST_USE_DATE
+				| RatingState.FIELD_USE_COUNT);
+		record.setEventCount("Aa", 4);
+		record.setEventCount("BB", 7);
+		record.setEventCount("a;b=c%3B", 2);
+
+		StateRecord decoded = StateRecord.decode(record.encode());
+		assertEquals(RatingState.FIELD_FIRST_USE_DATE | RatingState.FIELD_USE_COUNT,
+				decoded.fields());
+		assertEquals(5000, decoded.state().firstUseDate);
+		assertEquals(3, decoded.state().useCount);
+		assertEquals(4, decoded.eventCount("Aa", -1));
+		assertEquals(7, decoded.eventCount("BB", -1));
+		assertEquals(2, decoded.eventCount("a;b=c%3B", -1));
+		assertEquals(-1, decoded.eventCount("other", -1));
+		assertFalse(decoded.isNewerFormat());
+	}
+
+	@Test
+	public void keepsUnknownEntries() {
+		String encoded = withCrc("1;uses=3;later=abc;");
+		StateRecord record = StateRecord.decode(encoded);
+		assertEquals(3, record.state().useCount);
+		assertEquals(encoded, record.encode());
+	}
+
+	@Test
+	public void damagedRecordDecodesToNull() {
+		String encoded = withCrc("1;uses=3;");
+		assertNull(StateRecord.decode(encoded.replace("uses=3", "uses=4")));
+		assertNull(StateRecord.decode("1;uses=3;"));
+		assertNull(StateRecord.decode(withCrc("1;uses=three;")));
+		assertNull(StateRecord.decode(withCrc("one;uses=3;")));
+	}
+
+	@Test
+	public void readsTheKnownEntriesOfANewerFormat() {
+		StateRecord record = StateRecord.decode(withCrc("2;uses=5;events=1.5;c:x=3;more=1;"));
+		assertTrue(record.isNewerFormat());
+		assertEquals(RatingState.FIELD_USE_COUNT, record.fields());
+		assertEquals(5, record.state().useCount);
+		assertEquals(3, record.eventCount("x", 0));
+		assertEquals(withCrc("2;uses=5;c:x=3;events=1.5;more=1;"), record.encode());
+	}
+
+	@Test
+	public void writingAFieldOfANewerFormatReplacesTheEntry() {
+		StateRecord record = StateRecord.decode(withCrc("2;uses=5;events=1.5;c:x=0.5;"));
+		record.setState(RatingState.EMPTY.withSignificantEvents(2), RatingState.FIELD_SIG_EVENT_COUNT);
+		record.setEventCount("x", 1);
+		assertEquals(withCrc("2;uses=5;events=2;c:x=1;"), record.encode());
+	}
+
+	private static String withCrc(String entries) {
+		CRC32 crc = new CRC32();
+		crc.update(entries.getBytes(Charset.forName("UTF-8")));
+		return entries + "crc=" + Long.toHexString(crc.getValue());
+	}
+}
@@ -39,57 +39,184 @@
 
 package com.ijsbrandslob.appirater;
 
+import java.lang.ref.WeakReference;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-
+import android.app.Activity;
+import android.app.Application;
 import android.app.Dialog;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
-import android.content.res.Resources;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Handler;
-import android.util.Log;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.Button;
 import android.widget.TextView;
 
+import com.ijsbrandslob.appirater.core.EventAccumulator;
+import com.ijsbrandslob.appirater.core.Metrics;
+import com.ijsbrandslob.appirater.core.RatingEngine;
+import com.ijsbrandslob.appirater.core.RatingState;
+
+/**
+ * Asks the user to rate the app once it has been used enough. Appirater
+ * instances that keep their settings in the same place share one
+ * RatingEngine and background thread, so an app can create one per
+ * Activity without the instances overwriting each other's counts. Each
+ * instance shows the dialog through its own Handler.
+ *
+ * The Activity that shows the dialog is only weakly held and can be swapped
+ * with attach() and detach(). The dialogs built for it are weakly held as
+ * well, as they hold on to the Activity; everything else holds on to the
+ * application context only.
+ */
 public class Appirater {
-	private static final String NO_VERSION = "-1.-1.-1";
-
-	private final Context mContext;
+	private final Context mAppContext;
 	private final Handler mHandler;
-	private final Config mConfig;
+	private volatile WeakReference<Context> mHost;
+	private volatile Config mConfig;
 
-	private Date mFirstUseDate;
-	private Date mReminderRequestDate;
-	private int mUseCount;
-	private int mSignificantEventCount;
-	private String mCurrentVersion;
-	private boolean mRatedCurrentVersion;
-	private boolean mDeclinedToRate;
+	// The state shared with the other instances and shortcuts into it
+	private final AppiraterCore mCore;
+	private final RatingEngine mEngine;
+	private final Metrics mMetrics;
+	private final AtomicBoolean mReleased = new AtomicBoolean();
+
+	// Registered by trackSessions(); not typed, as the class needs API 14
+	private Object mSessionTracker;
+
+	/*
+	 * The default dialog is built ahead of time on the UI thread when the user
+	 * is close to being prompted, so showRatingAlert() only has to show it.
+	 * Dropped by detach(), and built again if it was collected.
+	 */
+	private WeakReference<Dialog> mPreparedDialog = new WeakReference<Dialog>(null); // UI thread only
+	private WeakReference<Dialog> mShownDialog = new WeakReference<Dialog>(null); // UI thread only
+	private final AtomicBoolean mPreparePosted = new AtomicBoolean();
+
+	private final Runnable mPrepareDialog = new Runnable() {
+		public void run() {
+			mPreparePosted.set(false);
+			if (mPreparedDialog.get() == null)
+				mPreparedDialog = new WeakReference<Dialog>(buildRatingDialog());
+		}
+	};
+
+	/*
+	 * Shows the dialog, posted once at a time. When no Activity is attached,
+	 * or it is finishing, the prompt stays pending until attach() is called.
+	 */
+	private volatile long mAlertPosted;
+	private boolean mAlertPending; // UI thread only
+	private final AtomicBoolean mAlertPostPending = new AtomicBoolean();
+
+	private final Runnable mShowRatingAlert = new Runnable() {
+		public void run() {
+			mAlertPostPending.set(false);
+			mMetrics.stop(Metrics.Operation.HANDLER_DISPATCH, mAlertPosted);
+			showRatingAlert();
+		}
+	};
+
+	/*
+	 * Launch and foreground events that have not been processed yet. The
+	 * lowest bit is set when any of them allowed prompting, the remaining
+	 * bits hold the number of uses.
+	 */
+	private final AtomicInteger mPendingUses = new AtomicInteger();
+
+	private final Runnable mProcessPendingUses = new Runnable() {
+		public void run() {
+			int pending = mPendingUses.getAndSet(0);
+			if (pending == 0)
+				return;
+
+			mCore.reloadSettingsIfChanged();
+			incrementAndRate(pending >>> 1, (pending & 1) != 0);
+		}
+	};
+
+	// Processing after a significant event, allocated once
+	private final Runnable mRateAfterEvent = new Runnable() {
+		public void run() {
+			mCore.reloadSettingsIfChanged();
+			rateIfConditionsMet(true);
+		}
+	};
+
+	private final Runnable mReloadAfterEvent = new Runnable() {
+		public void run() {
+			mCore.reloadSettingsIfChanged();
+			rateIfConditionsMet(false);
+		}
+	};
+
+	/*
+	 * Significant events collected for Config.eventBatchWindow, null if they
+	 * are counted right away. The flag is set when any of them allowed
+	 * prompting.
+	 */
+	private final EventAccumulator mEvents;
+	private final AtomicBoolean mPromptAfterDrain = new AtomicBoolean();
+
+	private final Runnable mDrainEvents = new Runnable() {
+		public void run() {
+			if (!mEvents.drainTo(mEngine))
+				return;
+
+			if (mConfig.debug)
+				System.out.println(String.format(
+						"APPIRATER Significant Event count: %d",
+						mEngine.state().significantEventCount));
+
+			mCore.reloadSettingsIfChanged();
+			rateIfConditionsMet(mPromptAfterDrain.getAndSet(false));
+		}
+	};
 
 	/**
-	 * Creates an Appirater with a custom Config.
+	 * Creates an Appirater with a custom Config. The settings are loaded in
+	 * the background; events reported in the meantime are counted once they
+	 * are loaded.
 	 * 
-	 * @param context The Activity where the Appirater should appear.
+	 * The first Appirater of the process for a storage decides the rating
+	 * conditions, storage and event channels of every later one for that
+	 * storage. The dialog builder and debug output are taken from config.
+	 * 
+	 * @param context The Activity where the Appirater should appear, weakly
+	 *            held. Any other context, like the Application, is only used
+	 *            for its application context; attach() an Activity before
+	 *            the dialog can be shown then.
 	 * @param handler Handler for UI updates.
 	 * @param config The configuration instance with custom settings.
 	 */
 	public Appirater(Context context, Handler handler, Config config) {
-		mContext = context;
+		mAppContext = context.getApplicationContext();
 		mHandler = handler;
+		mHost = new WeakReference<Context>(context instanceof Activity ? context : null);
 		mConfig = config;
-
-		loadSettings();
+		mCore = AppiraterCore.obtain(context, config);
+		mEngine = mCore.engine();
+		mMetrics = mCore.metrics();
+
+		if (config.eventBatchWindow > 0) {
+			mEvents = new EventAccumulator(mCore.eventChannels().size(),
+					config.eventBatchWindow, config.eventBatchSize,
+					new EventAccumulator.DrainScheduler() {
+						public void scheduleDrain(long delayMillis) {
+							mCore.schedule(mDrainEvents, delayMillis);
+						}
+					});
+		} else {
+			mEvents = null;
+		}
 	}
 
 	/**
@@ -114,13 +241,8 @@ public class Appirater {
 	 * be triggered by appEnteredForeground() and userDidSignificantEvent() (as
 	 * long as you pass true for canPromptForRating in those methods).
 	 */
-	public void appLaunched(final boolean canPromptForRating) {
-		new Thread(new Runnable() {
-			public void run() {
-				loadSettings();
-				incrementAndRate(canPromptForRating);
-			}
-		}).start();
+	public void appLaunched(boolean canPromptForRating) {
+		enqueueUse(canPromptForRating);
 	}
 
 	/**
@@ -135,13 +257,8 @@ public class Appirater {
 	 * be triggered by appLaunched() and userDidSignificantEvent() (as long as
 	 * you pass true for canPromptForRating in those methods).
 	 */
-	public void appEnteredForeground(final boolean canPromptForRating) {
-		new Thread(new Runnable() {
-			public void run() {
-				loadSettings();
-				incrementAndRate(canPromptForRating);
-			}
-		}).start();
+	public void appEnteredForeground(boolean canPromptForRating) {
+		enqueueUse(canPromptForRating);
 	}
 
 	/*
@@ -159,70 +276,339 @@ public class Appirater {
 	 * pass true for canPromptForRating in those methods).
 	 */
 	public void userDidSignificantEvent(boolean canPromptForRating) {
-		loadSettings();
-		incrementSignificantEventAndRate(canPromptForRating);
+		if (mEvents != null) {
+			mEvents.record();
+			promptAfterDrain(canPromptForRating);
+			return;
+		}
+
+		incrementSignificantEventCount();
+		rateAfterEvent(canPromptForRating);
 	}
 
-	private void incrementAndRate(boolean canPromptForRating) {
-		incrementUseCount();
-		if (canPromptForRating && ratingConditionsHaveBeenMet()
-				&& connectedToNetwork()) {
-			mHandler.post(new Runnable() {
-				public void run() {
-					showRatingAlert();
-				}
-			});
+	/**
+	 * Replaces the Config, for example with thresholds from remote settings,
+	 * without loading or writing the settings again. The rating conditions
+	 * are worked out again the next time they are checked.
+	 * 
+	 * The days, uses, significant events, reminder, rating rule, version
+	 * granularity, flush window, dialog builder and debug settings are taken
+	 * over. The rating conditions are shared with the other Appirater
+	 * instances that keep their settings in the same place. Everything that
+	 * is set up when an Appirater is created, like the storage, event
+	 * channels, clock, connectivity check, metrics, event batching and
+	 * session timeout, keeps its first value.
+	 * 
+	 * @throws IllegalArgumentException if config has other event channels,
+	 *             or a rating rule naming a channel it does not have.
+	 */
+	public void updateConfig(Config config) {
+		mCore.updateConfig(config);
+		mConfig = config;
+	}
+
+	/**
+	 * Lets Appirater count uses itself, instead of appLaunched() and
+	 * appEnteredForeground(). One use is counted each time the app comes to
+	 * the foreground after it has been in the background for
+	 * Config.sessionTimeout, so switching between Activities or recreating
+	 * one does not count. The dialog is shown on the Activity that is
+	 * resumed, so the Appirater may be created with the Application. Call
+	 * this from Application.onCreate() or before the first Activity starts,
+	 * on the UI thread. Stopped by shutdown().
+	 * 
+	 * @param canPromptForRating As for appLaunched().
+	 * @return false if the Android version does not report the lifecycle of
+	 *         Activities (before 4.0); call appLaunched() and
+	 *         appEnteredForeground() then.
+	 */
+	public boolean trackSessions(boolean canPromptForRating) {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH
+				|| !(mAppContext instanceof Application))
+			return false;
+
+		if (mSessionTracker == null) {
+			mSessionTracker = SessionTracker.register((Application) mAppContext,
+					this, mConfig.sessionTimeout, canPromptForRating);
 		}
+		return true;
 	}
 
-	private void incrementSignificantEventAndRate(boolean canPromptForRating) {
-		incrementSignificantEventCount();
-		if (canPromptForRating && ratingConditionsHaveBeenMet()
-				&& connectedToNetwork()) {
-			mHandler.post(new Runnable() {
-				public void run() {
-					showRatingAlert();
-				}
-			});
+	/**
+	 * Tells Appirater that the user performed a significant event on one of
+	 * the channels added with Config.Builder.addSignificantEventChannel().
+	 * Does not allocate, so it can be called for frequent events. For many
+	 * events per second, see Config.Builder.setEventBatching().
+	 * 
+	 * @param channelId The id of the channel, see eventChannelId().
+	 * @param canPromptForRating As for userDidSignificantEvent(boolean).
+	 */
+	public void userDidSignificantEvent(int channelId, boolean canPromptForRating) {
+		if (mEvents != null) {
+			mEvents.record(channelId);
+			promptAfterDrain(canPromptForRating);
+			return;
 		}
+
+		int count = mEngine.recordSignificantEvent(channelId);
+
+		if (mConfig.debug)
+			System.out.println(String.format(
+					"APPIRATER Significant Event count of %s: %d",
+					mCore.eventChannels().name(channelId), count));
+
+		rateAfterEvent(canPromptForRating);
 	}
 
-	private boolean connectedToNetwork() {
-		try {
-			HttpClient httpclient = new DefaultHttpClient();
-			HttpGet request = new HttpGet("http://www.google.com/");
-			HttpResponse result = httpclient.execute(request);
-			int statusCode = result.getStatusLine().getStatusCode();
+	/**
+	 * @return The id of the named significant event channel, or -1 if no
+	 *         such channel was added to the Config the shared settings were
+	 *         created with.
+	 */
+	public int eventChannelId(String name) {
+		return mCore.eventChannels().id(name);
+	}
 
-			if (statusCode < 400)
-				return true;
-		} catch (Exception ex) {
-			Log.w("Appirater", ex.toString());
+	/**
+	 * Makes activity the one that shows the rating dialog, for example after
+	 * it was recreated. A prompt that could not be shown while no Activity
+	 * was attached is shown now. Any other context detaches the Activity
+	 * instead. Call on the Handler's thread.
+	 */
+	public void attach(Context activity) {
+		if (mHost.get() != activity)
+			detach();
+		mHost = new WeakReference<Context>(activity instanceof Activity ? activity : null);
+		if (mAlertPending) {
+			mAlertPending = false;
+			postRatingAlert();
 		}
+	}
 
-		return false;
+	/**
+	 * Lets go of the Activity that shows the rating dialog, for example from
+	 * Activity.onDestroy(). A dialog that is showing is dismissed and a
+	 * pending prompt waits for the next attach(). Call on the Handler's
+	 * thread.
+	 */
+	public void detach() {
+		mHost = new WeakReference<Context>(null);
+
+		mHandler.removeCallbacks(mPrepareDialog);
+		mPreparePosted.set(false);
+		mPreparedDialog = new WeakReference<Dialog>(null);
+
+		if (mAlertPostPending.getAndSet(false)) {
+			mHandler.removeCallbacks(mShowRatingAlert);
+			mAlertPending = true;
+		}
+		Dialog shown = mShownDialog.get();
+		if (shown != null && shown.isShowing())
+			shown.dismiss();
+		mShownDialog = new WeakReference<Dialog>(null);
 	}
 
-	private Dialog buildRatingDialog() {
-		final Dialog rateDialog = new Dialog(mContext);
-		final Resources res = mContext.getResources();
-
-		CharSequence appname = "unknown";
-		try {
-			appname = mContext.getPackageManager().getApplicationLabel(
-					mContext.getPackageManager().getApplicationInfo(
-							mContext.getPackageName(), 0));
-		} catch (NameNotFoundException ex) { /* Do nothing */
+	/**
+	 * Tells Appirater that this instance is no longer needed. Call this when
+	 * the host no longer needs Appirater, for example from
+	 * Activity.onDestroy(). Detaches the Activity, see detach(), and cancels
+	 * pending prompts. Once every instance sharing the settings has been
+	 * shut down, work that was already queued is still processed, pending
+	 * settings are written right away and the background thread stops.
+	 * Calling appLaunched() or appEnteredForeground() afterwards starts a new
+	 * background thread.
+	 */
+	public void shutdown() {
+		if (mSessionTracker != null) {
+			((SessionTracker) mSessionTracker).unregister((Application) mAppContext);
+			mSessionTracker = null;
+		}
+		detach();
+		mAlertPending = false;
+		if (mReleased.compareAndSet(false, true)) {
+			if (mEvents != null)
+				mCore.execute(mDrainEvents);
+			mCore.release();
+		}
+	}
+
+	/**
+	 * Returns a Future that completes once the settings have been loaded in
+	 * the background. Until then getMetrics() and the rating conditions do
+	 * not reflect the stored settings yet. The load can not be cancelled
+	 * through it; cancel() returns false.
+	 */
+	public Future<Void> loaded() {
+		return mCore.loadSettings();
+	}
+
+	/**
+	 * Runs action on the Handler's thread once the settings have been loaded,
+	 * right away if they already are.
+	 */
+	public void runWhenLoaded(final Runnable action) {
+		if (mCore.loadSettings().isDone()) {
+			mHandler.post(action);
+			return;
 		}
 
-		rateDialog.setTitle(String.format(
-				res.getString(R.string.APPIRATER_MESSAGE_TITLE), appname));
+		mCore.execute(new Runnable() {
+			public void run() {
+				mCore.awaitLoaded();
+				mHandler.post(action);
+			}
+		});
+	}
+
+	/**
+	 * Returns the counters and, if enabled through Config.Builder, the latency
+	 * histograms of Appirater's own work.
+	 */
+	public Metrics.Snapshot getMetrics() {
+		return mMetrics.snapshot();
+	}
+
+	/**
+	 * Returns the record of Appirater's disk and network access on the main
+	 * thread, for example to fail a test when report() is not empty. Shared
+	 * with the other instances that keep their settings in the same place.
+	 * 
+	 * @return The guard, or null unless Config.Builder.enableStrictMode() was
+	 *         set for the first of those instances.
+	 */
+	public ThreadGuard getThreadGuard() {
+		return mCore.threadGuard();
+	}
+
+	/**
+	 * Writes settings that have not been saved yet on the calling thread.
+	 * Changes are normally written in the background shortly after they
+	 * happen; call this when the process may be killed before that, for
+	 * example from Activity.onPause(). Does nothing before the settings have
+	 * been loaded.
+	 *
+	 * @throws IllegalStateException if called on the main thread in strict
+	 *             mode that fails fast. Nothing is written or marked as
+	 *             written then.
+	 */
+	public void flush() {
+		checkBeforeWrite("flush");
+		if (mEvents != null)
+			mEvents.drainTo(mEngine);
+		mEngine.flush();
+	}
+
+	private void checkBeforeWrite(String operation) {
+		ThreadGuard guard = mCore.threadGuard();
+		if (guard != null)
+			guard.checkBefore(ThreadGuard.Access.DISK_WRITE, operation);
+	}
+
+	/**
+	 * Records a use and schedules processing on the background thread. Uses
+	 * that arrive while an earlier one is still queued are merged into the
+	 * same pass, so a burst of lifecycle calls only loads the settings and
+	 * evaluates the rating conditions once.
+	 */
+	private void enqueueUse(boolean canPromptForRating) {
+		int prev, next;
+		do {
+			prev = mPendingUses.get();
+			next = (prev + 2) | (canPromptForRating ? 1 : 0);
+		} while (!mPendingUses.compareAndSet(prev, next));
+
+		if (prev == 0)
+			mCore.execute(mProcessPendingUses);
+	}
+
+	/*
+	 * Only wakes the background thread when there is something to do.
+	 */
+	private void rateAfterEvent(boolean canPromptForRating) {
+		if (mEngine.storeChanged())
+			mCore.execute(canPromptForRating ? mRateAfterEvent : mReloadAfterEvent);
+		else if (canPromptForRating && ratingConditionsHaveBeenMet())
+			mCore.execute(mRateAfterEvent);
+	}
+
+	/*
+	 * Only writes the shared flag when it changes, so that threads reporting
+	 * many events do not contend on it.
+	 */
+	private void promptAfterDrain(boolean canPromptForRating) {
+		if (canPromptForRating && !mPromptAfterDrain.get())
+			mPromptAfterDrain.set(true);
+	}
+
+	private void incrementAndRate(int uses, boolean canPromptForRating) {
+		incrementUseCount(uses);
+		rateIfConditionsMet(canPromptForRating);
+	}
+
+	private void rateIfConditionsMet(boolean canPromptForRating) {
+		prepareRatingDialogIfClose();
+
+		if (canPromptForRating && ratingConditionsHaveBeenMet()
+				&& mCore.connectedToNetwork())
+			postRatingAlert();
+	}
+
+	private void postRatingAlert() {
+		if (mAlertPostPending.compareAndSet(false, true)) {
+			mAlertPosted = mMetrics.start();
+			mHandler.post(mShowRatingAlert);
+		}
+	}
+
+	boolean isAttachedTo(Context activity) {
+		return mHost.get() == activity;
+	}
+
+	/*
+	 * @return The attached Activity, or null if it was detached or collected,
+	 *         or is finishing or destroyed and can no longer show a dialog.
+	 */
+	private Context host() {
+		Activity host = (Activity) mHost.get();
+		if (host == null || host.isFinishing())
+			return null;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1 && host.isDestroyed())
+			return null;
+		return host;
+	}
+
+	/*
+	 * Called on the background thread. When the user is about to become
+	 * eligible, works out the dialog texts and has the UI thread build the
+	 * default dialog in an earlier frame than the one that shows it.
+	 */
+	private void prepareRatingDialogIfClose() {
+		if (mConfig.dialogBuilder != null
+				|| !mEngine.isCloseToPrompt())
+			return;
+
+		mCore.dialogTexts();
+		if (host() != null && mPreparePosted.compareAndSet(false, true))
+			mHandler.post(mPrepareDialog);
+	}
+
+	/*
+	 * @return The dialog, or null when no Activity is attached.
+	 */
+	private Dialog buildRatingDialog() {
+		final Context host = host();
+		if (host == null)
+			return null;
+
+		final Dialog rateDialog = new Dialog(host);
+		final AppiraterCore.DialogTexts texts = mCore.dialogTexts();
+
+		rateDialog.setTitle(texts.title);
 		rateDialog.setContentView(R.layout.appirater);
 
 		TextView messageArea = (TextView) rateDialog
 				.findViewById(R.id.appirater_message_area);
-		messageArea.setText(String.format(
-				res.getString(R.string.APPIRATER_MESSAGE), appname));
+		messageArea.setText(texts.message);
 
 		Button rateButton = (Button) rateDialog
 				.findViewById(R.id.appirater_rate_button);
@@ -231,16 +617,15 @@ public class Appirater {
 		Button cancelButton = (Button) rateDialog
 				.findViewById(R.id.appirater_cancel_button);
 
-		rateButton.setText(String.format(
-				res.getString(R.string.APPIRATER_RATE_BUTTON), appname));
+		rateButton.setText(texts.rateButton);
 
 		rateButton.setOnClickListener(new OnClickListener() {
 			@Override
 			public void onClick(View v) {
 				rateDialog.dismiss();
 
-				mRatedCurrentVersion = true;
-				saveSettings();
+				mEngine.setRatedCurrentVersion(true);
+				mMetrics.count(Metrics.Counter.RATED);
 				launchPlayStore();
 			}
 		});
@@ -248,8 +633,8 @@ public class Appirater {
 		remindLaterButton.setOnClickListener(new OnClickListener() {
 			@Override
 			public void onClick(View v) {
-				mReminderRequestDate = new Date();
-				saveSettings();
+				mEngine.remindLater();
+				mMetrics.count(Metrics.Counter.REMIND_LATER);
 				rateDialog.dismiss();
 			}
 		});
@@ -257,8 +642,8 @@ public class Appirater {
 		cancelButton.setOnClickListener(new OnClickListener() {
 			@Override
 			public void onClick(View v) {
-				mDeclinedToRate = true;
-				saveSettings();
+				mEngine.declineToRate();
+				mMetrics.count(Metrics.Counter.DECLINED);
 				rateDialog.dismiss();
 			}
 		});
@@ -266,98 +651,79 @@ public class Appirater {
 	}
 
 	private void showRatingAlert() {
-		final Dialog rateDialog;
-		if (mConfig.dialogBuilder == null) {
-			rateDialog = buildRatingDialog();
-		} else {
-			rateDialog = mConfig.dialogBuilder.buildRatingDialog();
+		if (host() == null) {
+			mAlertPending = true;
+			return;
 		}
 
+		long start = mMetrics.start();
+		Dialog rateDialog = mPreparedDialog.get();
+		mPreparedDialog = new WeakReference<Dialog>(null);
+		if (rateDialog == null) {
+			rateDialog = mConfig.dialogBuilder == null ? buildRatingDialog()
+					: mConfig.dialogBuilder.buildRatingDialog();
+		}
+		mMetrics.stop(Metrics.Operation.BUILD_DIALOG, start);
+		mMetrics.count(Metrics.Counter.PROMPTS_SHOWN);
 
+		mShownDialog = new WeakReference<Dialog>(rateDialog);
 		rateDialog.show();
 	}
 
+	/**
+	 * Opens the app's page in the Play Store, from the attached Activity or,
+	 * when there is none, in a new task.
+	 */
 	public void launchPlayStore() {
-		PackageManager packageManager = mContext.getPackageManager();
+		Context context = host();
+		if (context == null)
+			context = mAppContext;
+
+		PackageManager packageManager = context.getPackageManager();
 		Uri marketUri = Uri.parse(String.format(
-				"market://details?id=%s", mContext.getPackageName()));
+				"market://details?id=%s", context.getPackageName()));
 		Intent marketIntent = new Intent(Intent.ACTION_VIEW)
 				.setData(marketUri);
 
 		List<?> list = packageManager.queryIntentActivities(
 				marketIntent, PackageManager.MATCH_DEFAULT_ONLY);
 		if (list.size() > 0) {
-			mContext.startActivity(marketIntent);
+			startActivity(context, marketIntent);
 		} else {
 			Uri webUri = Uri.parse(String.format(
 					"http://play.google.com/store/apps/details?id=%s",
-					mContext.getPackageName()));
+					context.getPackageName()));
 			Intent webIntent = new Intent(Intent.ACTION_VIEW)
 					.setData(webUri);
-			mContext.startActivity(webIntent);
+			startActivity(context, webIntent);
 		}
 	}
 
-	private boolean ratingConditionsHaveBeenMet() {
-		if (mConfig.debug)
-			return true;
-
-		Date now = new Date();
-		long timeSinceFirstLaunch = now.getTime() - mFirstUseDate.getTime();
-		long timeUntilRate = 1000 * 60 * 60 * 24 * mConfig.daysUntilPrompt;
-
-		if (timeSinceFirstLaunch < timeUntilRate)
-			return false;
-
-		// check if the app has been used enough
-		if (mUseCount < mConfig.usesUntilPrompt)
-			return false;
-
-		// check if the user has done enough significant events
-		if (mSignificantEventCount < mConfig.sigEventsBeforePrompt)
-			return false;
-
-		// has the user previously declined to rate this version of the app?
-		if (mDeclinedToRate)
-			return false;
-
-		// has the user already rated the app?
-		if (mRatedCurrentVersion)
-			return false;
-
-		// if the user wanted to be reminded later, has enough time passed?
-		if (null != mReminderRequestDate) {
-			long timeSinceReminderRequest = now.getTime()
-					- mReminderRequestDate.getTime();
-			long timeUntilReminder = 1000 * 60 * 60 * 24
-					* mConfig.timeBeforeReminding;
-
-			if (timeSinceReminderRequest < timeUntilReminder)
-				return false;
-		}
-
-		return true;
+	private void startActivity(Context context, Intent intent) {
+		if (context == mAppContext)
+			intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+		context.startActivity(intent);
 	}
 
-	private void incrementUseCount() {
-		++mUseCount;
+	private boolean ratingConditionsHaveBeenMet() {
+		return mEngine.ratingConditionsHaveBeenMet();
+	}
 
-		saveSettings();
+	private void incrementUseCount(int uses) {
+		RatingState state = mEngine.recordUses(uses);
 
 		if (mConfig.debug)
 			System.out.println(String.format("APPIRATER Use count: %d",
-					mUseCount));
+					state.useCount));
 	}
 
 	private void incrementSignificantEventCount() {
-		++mSignificantEventCount;
-
-		saveSettings();
+		RatingState state = mEngine.recordSignificantEvent();
 
 		if (mConfig.debug)
 			System.out.println(String.format(
 					"APPIRATER Significant Event count: %d",
-					mSignificantEventCount));
+					state.significantEventCount));
 	}
 
 	/**
@@ -365,127 +731,28 @@ public class Appirater {
 	 */
 	@SuppressWarnings("unused")
 	private void resetTracking() {
-		mCurrentVersion = appVersion();
-		mFirstUseDate = new Date();
-		mUseCount = 0;
-		mSignificantEventCount = 0;
-		mRatedCurrentVersion = false;
-		mDeclinedToRate = false;
-		mReminderRequestDate = null;
+		mEngine.resetTracking(mCore.appVersion());
 	}
 
 	public void resetTrackingForNewVersion() {
-		mCurrentVersion = appVersion();
-		mRatedCurrentVersion = false;
-		mDeclinedToRate = false;
-		mReminderRequestDate = null;
-		mSignificantEventCount = 0;
-		mUseCount = 0;
-		saveSettings();
-	}
-
-	private String appVersion() {
-		try {
-			return mContext.getPackageManager().getPackageInfo(
-					mContext.getPackageName(), 0).versionName;
-		} catch (NameNotFoundException ex) {
-			return NO_VERSION;
-		}
-	}
-
-	// Settings
-	private static final String APPIRATER_FIRST_USE_DATE = "APPIRATER_FIRST_USE_DATE";
-	private static final String APPIRATER_REMINDER_REQUEST_DATE = "APPIRATER_REMINDER_REQUEST_DATE";
-	private static final String APPIRATER_USE_COUNT = "APPIRATER_USE_COUNT";
-	private static final String APPIRATER_SIG_EVENT_COUNT = "APPIRATER_SIG_EVENT_COUNT";
-	private static final String APPIRATER_CURRENT_VERSION_NAME = "APPIRATER_CURRENT_VERSION_NAME";
-	private static final String APPIRATER_RATED_CURRENT_VERSION = "APPIRATER_RATED_CURRENT_VERSION";
-	private static final String APPIRATER_DECLINED_TO_RATE = "APPIRATER_DECLINED_TO_RATE";
-
-	private void loadSettings() {
-		SharedPreferences settings = mContext.getSharedPreferences(
-				mContext.getPackageName(), Context.MODE_PRIVATE);
-
-		// Did we save settings before?
-		if (settings.contains(APPIRATER_FIRST_USE_DATE)) {
-			long firstUseDate = settings.getLong(APPIRATER_FIRST_USE_DATE, -1);
-			if (-1 != firstUseDate) {
-				mFirstUseDate = new Date(firstUseDate);
-			} else {
-				mFirstUseDate = new Date();
-			}
-
-			long reminderRequestDate = settings.getLong(
-					APPIRATER_REMINDER_REQUEST_DATE, -1);
-			if (-1 != reminderRequestDate)
-				mReminderRequestDate = new Date(reminderRequestDate);
-
-			mUseCount = settings.getInt(APPIRATER_USE_COUNT, 0);
-			mSignificantEventCount = settings.getInt(APPIRATER_SIG_EVENT_COUNT,
-					0);
-			mCurrentVersion = settings.getString(APPIRATER_CURRENT_VERSION_NAME, NO_VERSION);
-			if (mCurrentVersion == null || mCurrentVersion.equals("")) {
-				mCurrentVersion = NO_VERSION;
-			}
-			mRatedCurrentVersion = settings.getBoolean(
-					APPIRATER_RATED_CURRENT_VERSION, false);
-			mDeclinedToRate = settings.getBoolean(APPIRATER_DECLINED_TO_RATE,
-					false);
-		} else {
-			mCurrentVersion = appVersion();
-			mFirstUseDate = new Date();
-
-			if (mConfig.debug)
-				System.out.println(String.format(
-						"APPIRATER Tracking version: %d", mCurrentVersion));
-		}
-
-		if (newAppVersion())
-			resetTrackingForNewVersion();
-		saveSettings();
-	}
-
-	private boolean newAppVersion() {
-		if (mCurrentVersion == null || mCurrentVersion.equals(NO_VERSION)) {
-			return true;
-		}
-		String[] realVersion = appVersion().split("\\.");
-		String[] savedVersion = mCurrentVersion.split("\\.");
-		//Both are long enough to compare
-		//AND not both the same first two units
-		return (savedVersion.length >= 2 && realVersion.length >= 2
-				&! (savedVersion[0].equals(realVersion[0]) && savedVersion[1].equals(realVersion[1])));
+		mEngine.resetTrackingForNewVersion(mCore.appVersion());
 	}
 
+	/**
+	 * Writes all settings to disk on the calling thread.
+	 */
 	public void saveSettings() {
-		SharedPreferences prefs = mContext.getSharedPreferences(
-				mContext.getPackageName(), Context.MODE_PRIVATE);
-		SharedPreferences.Editor editor = prefs.edit();
-
-		long firstUseDate = -1;
-		if (mFirstUseDate != null)
-			firstUseDate = mFirstUseDate.getTime();
-		editor.putLong(APPIRATER_FIRST_USE_DATE, firstUseDate);
-
-		long reminderRequestDate = -1;
-		if (mReminderRequestDate != null)
-			reminderRequestDate = mReminderRequestDate.getTime();
-		editor.putLong(APPIRATER_REMINDER_REQUEST_DATE, reminderRequestDate);
-
-		editor.putInt(APPIRATER_USE_COUNT, mUseCount);
-		editor.putInt(APPIRATER_SIG_EVENT_COUNT, mSignificantEventCount);
-		editor.putString(APPIRATER_CURRENT_VERSION_NAME, mCurrentVersion);
-		editor.putBoolean(APPIRATER_RATED_CURRENT_VERSION, mRatedCurrentVersion);
-		editor.putBoolean(APPIRATER_DECLINED_TO_RATE, mDeclinedToRate);
-
-		editor.commit();
+		checkBeforeWrite("saveSettings");
+		mEngine.markAllDirty();
+		mEngine.flush();
 	}
 
 	public void setReminderRequestDate(Date reminderRequestDate) {
-		mReminderRequestDate = reminderRequestDate;
+		mEngine.setReminderRequestDate(reminderRequestDate != null ? reminderRequestDate
+				.getTime() : RatingState.NO_DATE);
 	}
 
 	public void setRatedCurrentVersion(boolean ratedCurrentVersion) {
-		mRatedCurrentVersion = ratedCurrentVersion;
+		mEngine.setRatedCurrentVersion(ratedCurrentVersion);
 	}
 }
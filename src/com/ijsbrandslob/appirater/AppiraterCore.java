@@ -0,0 +1,523 @@
+package com.ijsbrandslob.appirater;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.res.Resources;
+import android.os.FileObserver;
+
+import com.ijsbrandslob.appirater.core.AppVersion;
+import com.ijsbrandslob.appirater.core.Clock;
+import com.ijsbrandslob.appirater.core.EventChannels;
+import com.ijsbrandslob.appirater.core.JournalStateStore;
+import com.ijsbrandslob.appirater.core.MappedStateStore;
+import com.ijsbrandslob.appirater.core.Metrics;
+import com.ijsbrandslob.appirater.core.RatingEngine;
+import com.ijsbrandslob.appirater.core.RatingPolicy;
+import com.ijsbrandslob.appirater.core.RatingState;
+import com.ijsbrandslob.appirater.core.RatingStateStore;
+import com.ijsbrandslob.appirater.core.ShardedStateStore;
+
+/**
+ * The part of Appirater that is shared by every Appirater instance of the
+ * process that keeps its settings in the same place: the RatingEngine with
+ * its store, the background thread and the connectivity check. Instances
+ * are handed out by obtain(), so Activities that each create an Appirater
+ * count into the same state instead of overwriting each other's counts.
+ *
+ * Holds on to the application context only. Creating a core does not touch
+ * the disk: the store is opened by the first load on the background thread.
+ */
+final class AppiraterCore {
+	private static final String JOURNAL_FILE = "appirater.journal";
+	private static final String MAPPED_FILE = "appirater.state";
+	private static final String SHARD_DIRECTORY = "appirater.shards";
+
+	// The AppVersion key of the installed version
+	private static volatile long sInstalledVersion = AppVersion.NONE;
+
+	// The cores by the place their settings are kept in
+	private static final Map<String, AppiraterCore> sCores = new HashMap<String, AppiraterCore>();
+
+	private final Context mContext;
+
+	// Set up when the core is created; updateConfig() leaves them alone
+	private final Config.Storage mStorage;
+	private final long mJournalCompactionSize;
+	private final EventChannels mEventChannels;
+	private final Clock mClock;
+
+	// Replaced by updateConfig()
+	private volatile long mFlushWindow;
+	private final ConnectivityProbe mConnectivityProbe;
+	private final RatingEngine mEngine;
+	private final Metrics mMetrics;
+
+	// Checks disk and network access in strict mode, otherwise null
+	private final ThreadGuard mThreadGuard;
+
+	// Tells a ShardedStateStore about shards written by other processes; set
+	// when the store is opened
+	private volatile FileObserver mShardObserver;
+
+	// The Appirater instances that have not been shut down; guarded by sCores
+	private int mUsers;
+
+	/*
+	 * Loads the settings on the background thread. Queued when the core is
+	 * created, so all other background work runs after it.
+	 */
+	private final FutureTask<Void> mLoadSettings = new FutureTask<Void>(new Runnable() {
+		public void run() {
+			mEngine.load(appVersion());
+			FileObserver observer = mShardObserver;
+			if (observer != null)
+				observer.startWatching();
+		}
+	}, null);
+
+	/*
+	 * mLoadSettings as handed out by loadSettings(). Callers can wait for the
+	 * load but not cancel it; the other Appirater instances share it.
+	 */
+	private final Future<Void> mLoaded = new Future<Void>() {
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		public boolean isCancelled() {
+			return mLoadSettings.isCancelled();
+		}
+
+		public boolean isDone() {
+			return mLoadSettings.isDone();
+		}
+
+		public Void get() throws InterruptedException, ExecutionException {
+			return mLoadSettings.get();
+		}
+
+		public Void get(long timeout, TimeUnit unit) throws InterruptedException,
+				ExecutionException, TimeoutException {
+			return mLoadSettings.get(timeout, unit);
+		}
+	};
+
+	private final Runnable mWriteDirtySettings = new Runnable() {
+		public void run() {
+			mEngine.flush();
+		}
+	};
+
+	// The texts of the default dialog for the current locale, worked out in
+	// the background
+	private volatile DialogTexts mDialogTexts;
+
+	// Background work
+	private ScheduledExecutorService mExecutor;
+	private final Object mExecutorLock = new Object();
+
+	private AppiraterCore(Context context, Config config) {
+		mContext = context;
+		mStorage = config.storage;
+		mJournalCompactionSize = config.journalCompactionSize;
+		mEventChannels = config.eventChannels;
+		mClock = config.clock;
+		mFlushWindow = config.flushWindow;
+		mMetrics = new Metrics(config.metricsListener, config.collectMetrics);
+		mThreadGuard = config.strictMode ? new ThreadGuard(config.strictModeFailFast,
+				config.debug) : null;
+		RatingStateStore store = new DeferredStore();
+		mEngine = new RatingEngine(policy(config), mThreadGuard != null
+				? mThreadGuard.guard(store) : store, config.clock, mMetrics);
+		mEngine.setWriteScheduler(new RatingEngine.WriteScheduler() {
+			public void scheduleWrite() {
+				schedule(mWriteDirtySettings, mFlushWindow);
+			}
+		});
+
+		ConnectivityProbe probe = config.connectivityProbe;
+		if (probe == null)
+			probe = new NetworkInfoConnectivityProbe(context);
+		if (mThreadGuard != null)
+			probe = mThreadGuard.guard(probe);
+		mConnectivityProbe = new CachingConnectivityProbe(probe,
+				config.connectivityCacheTtl);
+
+		execute(mLoadSettings);
+	}
+
+	/**
+	 * Returns the core for the place where config keeps the settings,
+	 * creating it with config if there is none yet. Every call must be
+	 * matched by a call to release().
+	 */
+	static AppiraterCore obtain(Context context, Config config) {
+		final Context appContext = context.getApplicationContext();
+		final String namespace = config.storage + ":" + appContext.getPackageName();
+
+		synchronized (sCores) {
+			AppiraterCore core = sCores.get(namespace);
+			if (core == null) {
+				core = new AppiraterCore(appContext, config);
+				sCores.put(namespace, core);
+			}
+			core.mUsers++;
+			return core;
+		}
+	}
+
+	/**
+	 * Gives up a reference from obtain(). When the last one is released the
+	 * pending settings are written and the background thread stops. The core
+	 * stays registered and starts a new thread when it is used again.
+	 */
+	void release() {
+		synchronized (sCores) {
+			if (--mUsers > 0)
+				return;
+		}
+
+		mEngine.stopWatchingStore();
+
+		synchronized (mExecutorLock) {
+			if (mExecutor != null) {
+				mExecutor.execute(mWriteDirtySettings);
+				mExecutor.shutdown();
+				mExecutor = null;
+			}
+		}
+	}
+
+	/**
+	 * @return The event channels the core was created with.
+	 */
+	EventChannels eventChannels() {
+		return mEventChannels;
+	}
+
+	/**
+	 * Takes the rating conditions and flush window from config. The storage,
+	 * event channels and everything else that was set up when the core was
+	 * created stay as they are.
+	 *
+	 * @throws IllegalArgumentException if config has other event channels.
+	 */
+	void updateConfig(Config config) {
+		mEngine.setPolicy(policy(config));
+		mFlushWindow = config.flushWindow;
+	}
+
+	RatingEngine engine() {
+		return mEngine;
+	}
+
+	Metrics metrics() {
+		return mMetrics;
+	}
+
+	ThreadGuard threadGuard() {
+		return mThreadGuard;
+	}
+
+	/**
+	 * @return A Future that completes once the settings are loaded, and that
+	 *         can not be cancelled.
+	 */
+	Future<Void> loadSettings() {
+		return mLoaded;
+	}
+
+	/**
+	 * Runs task on the background thread, starting a new one if release()
+	 * stopped it. Submitted under the same lock release() shuts the thread
+	 * down with, so a task is never rejected by a thread that was just
+	 * stopped.
+	 */
+	void execute(Runnable task) {
+		synchronized (mExecutorLock) {
+			executor().execute(task);
+		}
+	}
+
+	/**
+	 * Like execute(), after delayMillis.
+	 */
+	void schedule(Runnable task, long delayMillis) {
+		synchronized (mExecutorLock) {
+			executor().schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	// Call with mExecutorLock held
+	private ScheduledExecutorService executor() {
+		if (mExecutor == null) {
+			mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Appirater");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return mExecutor;
+	}
+
+	/*
+	 * Background work queued after the load runs after it anyway, except on
+	 * a new background thread started while the old one, stopped by
+	 * release(), is still loading.
+	 */
+	void awaitLoaded() {
+		try {
+			mLoadSettings.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException ex) {
+			// Carry on without the stored settings, they are not overwritten
+		} catch (CancellationException ex) {
+			// Likewise
+		}
+	}
+
+	void reloadSettingsIfChanged() {
+		awaitLoaded();
+		if (mEngine.storeChanged())
+			mEngine.load(appVersion());
+	}
+
+	boolean connectedToNetwork() {
+		long start = mMetrics.start();
+		boolean connected = mConnectivityProbe.isConnected();
+		mMetrics.stop(Metrics.Operation.CONNECTIVITY_PROBE, start);
+		return connected;
+	}
+
+	/*
+	 * The installed version cannot change while the process runs, so it is
+	 * read from the PackageManager once.
+	 */
+	long appVersion() {
+		long version = sInstalledVersion;
+		if (version == AppVersion.NONE) {
+			try {
+				PackageInfo info = mContext.getPackageManager().getPackageInfo(
+						mContext.getPackageName(), 0);
+				version = AppVersion.key(info.versionName, info.versionCode);
+				sInstalledVersion = version;
+			} catch (NameNotFoundException ex) {
+				return AppVersion.NONE;
+			}
+		}
+		return version;
+	}
+
+	/*
+	 * The texts are worked out again when the locale changed since they were
+	 * last worked out, for example after the user switched languages.
+	 */
+	DialogTexts dialogTexts() {
+		Locale locale = mContext.getResources().getConfiguration().locale;
+		DialogTexts texts = mDialogTexts;
+		if (texts == null || !texts.locale.equals(locale)) {
+			texts = new DialogTexts(mContext, locale);
+			mDialogTexts = texts;
+		}
+		return texts;
+	}
+
+	static final class DialogTexts {
+		final Locale locale;
+		final String title;
+		final String message;
+		final String rateButton;
+
+		DialogTexts(Context context, Locale locale) {
+			final Resources res = context.getResources();
+			this.locale = locale;
+
+			CharSequence appname = "unknown";
+			try {
+				appname = context.getPackageManager().getApplicationLabel(
+						context.getPackageManager().getApplicationInfo(
+								context.getPackageName(), 0));
+			} catch (NameNotFoundException ex) { /* Do nothing */
+			}
+
+			title = String.format(res.getString(R.string.APPIRATER_MESSAGE_TITLE), appname);
+			message = String.format(res.getString(R.string.APPIRATER_MESSAGE), appname);
+			rateButton = String.format(res.getString(R.string.APPIRATER_RATE_BUTTON), appname);
+		}
+	}
+
+	private static RatingPolicy policy(Config config) {
+		return new RatingPolicy(config.daysUntilPrompt, config.usesUntilPrompt,
+				config.timeBeforeReminding, config.sigEventsBeforePrompt,
+				config.versionGranularity, config.eventChannels, config.ratingRule,
+				config.debug);
+	}
+
+	/*
+	 * Creates the store on first use, which is the load on the background
+	 * thread, and copies the settings over when the app switched storage.
+	 */
+	private final class DeferredStore implements RatingStateStore {
+		private RatingStateStore mStore;
+		private ChangeListener mListener;
+
+		private synchronized RatingStateStore store() {
+			if (mStore == null) {
+				mStore = openStore();
+				if (mListener != null)
+					mStore.setChangeListener(mListener);
+			}
+			return mStore;
+		}
+
+		public RatingState load() {
+			return store().load();
+		}
+
+		public void save(RatingState state, int fields) {
+			store().save(state, fields);
+		}
+
+		public void loadEventCounts(EventChannels channels, int[] counts) {
+			store().loadEventCounts(channels, counts);
+		}
+
+		public void saveEventCounts(EventChannels channels, int[] counts) {
+			store().saveEventCounts(channels, counts);
+		}
+
+		public synchronized void setChangeListener(ChangeListener listener) {
+			mListener = listener;
+			if (mStore != null)
+				mStore.setChangeListener(listener);
+		}
+	}
+
+	private RatingStateStore openStore() {
+		final File file;
+		final RatingStateStore store;
+		switch (mStorage) {
+		case JOURNAL:
+			file = new File(mContext.getFilesDir(), JOURNAL_FILE);
+			store = new JournalStateStore(file, mJournalCompactionSize);
+			break;
+		case MAPPED_FILE:
+			file = new File(mContext.getFilesDir(), MAPPED_FILE);
+			store = new MappedStateStore(file);
+			break;
+		case MULTI_PROCESS:
+			return openShards(new File(mContext.getFilesDir(), SHARD_DIRECTORY));
+		default:
+			return new SharedPreferencesStateStore(mContext, appVersion());
+		}
+
+		if (!file.exists())
+			copySettings(new SharedPreferencesStateStore(mContext, appVersion()), store,
+					mEventChannels);
+		return store;
+	}
+
+	/*
+	 * The first process to find no shard directory copies the settings into
+	 * its shard in a directory of its own and renames that into place, so
+	 * other processes see either no directory or one that holds the copied
+	 * settings. Copies of processes that lose the race are dropped.
+	 */
+	private RatingStateStore openShards(File directory) {
+		String shard = processName(mContext);
+		if (!directory.exists()) {
+			File staging = new File(directory.getPath() + "." + shard + ".tmp");
+			delete(staging);
+			copySettings(new SharedPreferencesStateStore(mContext, appVersion()),
+					new ShardedStateStore(staging, shard, mClock), mEventChannels);
+			if (!staging.renameTo(directory))
+				delete(staging);
+		}
+		directory.mkdirs();
+
+		final ShardedStateStore store = new ShardedStateStore(directory, shard, mClock);
+		mShardObserver = new FileObserver(directory.getPath(), FileObserver.MOVED_TO) {
+			@Override
+			public void onEvent(int event, String path) {
+				store.onShardWritten(path);
+			}
+		};
+		return store;
+	}
+
+	private static void delete(File directory) {
+		File[] files = directory.listFiles();
+		for (int i = 0; files != null && i < files.length; ++i)
+			files[i].delete();
+		directory.delete();
+	}
+
+	/*
+	 * The name of the calling process, like "com.example.app:sync", turned
+	 * into a file name. Falls back to the package name.
+	 */
+	private static String processName(Context context) {
+		String name = null;
+		try {
+			FileInputStream in = new FileInputStream("/proc/self/cmdline");
+			try {
+				byte[] cmdline = new byte[256];
+				int length = 0, n;
+				while (length < cmdline.length
+						&& (n = in.read(cmdline, length, cmdline.length - length)) > 0)
+					length += n;
+				int end = 0;
+				while (end < length && cmdline[end] != 0)
+					end++;
+				if (end > 0)
+					name = new String(cmdline, 0, end, "UTF-8");
+			} finally {
+				in.close();
+			}
+		} catch (IOException ex) {
+			// Use the package name
+		}
+		if (name == null)
+			name = context.getPackageName();
+		return name.replaceAll("[^A-Za-z0-9._-]", "_");
+	}
+
+	/*
+	 * Carries the settings over when the app switches to another storage.
+	 * Called on the background thread before the first load, which the
+	 * thread guard checks as a whole.
+	 */
+	private static void copySettings(RatingStateStore from, RatingStateStore to,
+			EventChannels channels) {
+		RatingState state = from.load();
+		if (state == null)
+			return;
+
+		to.save(state, RatingState.ALL_FIELDS);
+		if (channels.size() > 0) {
+			int[] counts = new int[channels.size()];
+			from.loadEventCounts(channels, counts);
+			to.saveEventCounts(channels, counts);
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package com.ijsbrandslob.appirater;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import android.util.Log;
+
+/**
+ * Wraps a ConnectivityProbe and remembers its answer for a fixed time. When
+ * several threads ask at once while the cached answer is stale, only one of
+ * them calls the wrapped probe and the others wait for its result.
+ */
+class CachingConnectivityProbe implements ConnectivityProbe {
+	private final ConnectivityProbe mProbe;
+	private final long mTtlNanos;
+
+	// Guarded by this
+	private FutureTask<Boolean> mInFlight;
+	private boolean mLastResult;
+	private long mExpiresAt;
+	private boolean mHasResult;
+
+	/**
+	 * @param probe The probe that does the actual check.
+	 * @param ttlMillis How long an answer is reused, in milliseconds. Zero
+	 *            disables caching but still shares concurrent checks.
+	 */
+	CachingConnectivityProbe(ConnectivityProbe probe, long ttlMillis) {
+		mProbe = probe;
+		mTtlNanos = ttlMillis * 1000000L;
+	}
+
+	public boolean isConnected() {
+		final FutureTask<Boolean> task;
+		boolean owner = false;
+
+		synchronized (this) {
+			if (mInFlight == null) {
+				if (mHasResult && System.nanoTime() - mExpiresAt < 0)
+					return mLastResult;
+
+				mInFlight = new FutureTask<Boolean>(new Callable<Boolean>() {
+					public Boolean call() {
+						return mProbe.isConnected();
+					}
+				});
+				owner = true;
+			}
+			task = mInFlight;
+		}
+
+		if (owner)
+			task.run();
+
+		boolean result = false;
+		try {
+			result = task.get();
+		} catch (ExecutionException ex) {
+			Log.w("Appirater", ex.getCause().toString());
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (owner) {
+			synchronized (this) {
+				mLastResult = result;
+				mHasResult = true;
+				mExpiresAt = System.nanoTime() + mTtlNanos;
+				mInFlight = null;
+			}
+		}
+		return result;
+	}
+}
@@ -1,12 +1,55 @@
 package com.ijsbrandslob.appirater;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import android.app.Dialog;
 
+import com.ijsbrandslob.appirater.core.AppVersion;
+import com.ijsbrandslob.appirater.core.Clock;
+import com.ijsbrandslob.appirater.core.EventChannels;
+import com.ijsbrandslob.appirater.core.MetricsListener;
+import com.ijsbrandslob.appirater.core.RatingRule;
+
 public class Config {
 	public interface RatingDialogBuilder {
 		public Dialog buildRatingDialog();
 	}
 
+	/**
+	 * Where Appirater keeps its settings.
+	 */
+	public enum Storage {
+		/**
+		 * The SharedPreferences named after the package.
+		 */
+		SHARED_PREFERENCES,
+
+		/**
+		 * A journal file of its own, see JournalStateStore. Each change is
+		 * appended instead of rewriting a whole file. Settings kept in the
+		 * SharedPreferences are copied over the first time.
+		 */
+		JOURNAL,
+
+		/**
+		 * A small binary file that is mapped into memory, see
+		 * MappedStateStore. Loading does not parse XML and writes change the
+		 * file in place. Settings kept in the SharedPreferences are copied
+		 * over the first time.
+		 */
+		MAPPED_FILE,
+
+		/**
+		 * One small file per process, see ShardedStateStore, for apps that
+		 * run Appirater in several processes. The counts of all processes add
+		 * up and changes made by one process are picked up by the others.
+		 * Settings kept in the SharedPreferences are copied over the first
+		 * time.
+		 */
+		MULTI_PROCESS
+	}
+
 	/**
 	 * If true then Appirater will prompt the user every time the Activity is
 	 * started. Useful for testing how your message looks and making sure the
@@ -43,6 +86,34 @@ public class Config {
 	 */
 	public final int sigEventsBeforePrompt;
 
+	/**
+	 * Named kinds of significant events, like "level_cleared" or "purchase",
+	 * each with its own threshold and weight. Report them with
+	 * Appirater.userDidSignificantEvent(int, boolean), using the id returned
+	 * by eventChannels.id(name).
+	 */
+	public final EventChannels eventChannels;
+
+	/**
+	 * If above 0, significant events are collected for up to this many
+	 * milliseconds and counted together, and the rating conditions are
+	 * checked once for all of them. For apps that report events at a high
+	 * rate. 0 counts every event right away.
+	 */
+	public final long eventBatchWindow;
+
+	/**
+	 * The number of significant events after which a batch is counted before
+	 * eventBatchWindow has passed.
+	 */
+	public final int eventBatchSize;
+
+	/**
+	 * A custom condition for prompting the user, or null to use
+	 * daysUntilPrompt, usesUntilPrompt and sigEventsBeforePrompt.
+	 */
+	public final RatingRule ratingRule;
+
 	/**
 	 * Once the rating alert is presented to the user, they might select 'Remind
 	 * me later'. This value specifies how long (in days) Appirater will wait
@@ -50,18 +121,108 @@ public class Config {
 	 */
 	public final int timeBeforeReminding;
 
+	/**
+	 * Which part of the version has to change before Appirater starts
+	 * tracking the app from scratch. MINOR by default, so a new patch release
+	 * keeps the counts of the release it replaces.
+	 */
+	public final AppVersion.Granularity versionGranularity;
+
 	/**
 	 * A custom dialog builder
 	 */
 	public final RatingDialogBuilder dialogBuilder;
 
-	private Config(int daysUntilPrompt, int usesUntilPrompt, int timeBeforeReminding, int sigEventsBeforePrompt, RatingDialogBuilder dialogBuilder, boolean debug) {
+	/**
+	 * A custom connectivity check. If null, Appirater asks the
+	 * ConnectivityManager for the active network.
+	 */
+	public final ConnectivityProbe connectivityProbe;
+
+	/**
+	 * How long (in milliseconds) the answer of the connectivity check is
+	 * reused before checking again.
+	 */
+	public final long connectivityCacheTtl;
+
+	/**
+	 * Where the settings are kept.
+	 */
+	public final Storage storage;
+
+	/**
+	 * The size in bytes above which the journal is replaced by a snapshot,
+	 * when storage is JOURNAL.
+	 */
+	public final long journalCompactionSize;
+
+	/**
+	 * When Appirater tracks sessions itself, see Appirater.trackSessions(),
+	 * the app has to be in the background for this many milliseconds before
+	 * coming back counts as a new use.
+	 */
+	public final long sessionTimeout;
+
+	/**
+	 * Changes to the Appirater settings are collected for this many
+	 * milliseconds and then written to disk together in the background. Call
+	 * Appirater.flush() to write them immediately.
+	 */
+	public final long flushWindow;
+
+	/**
+	 * The source of the current time.
+	 */
+	public final Clock clock;
+
+	/**
+	 * Receives the duration of Appirater's own work, may be null.
+	 */
+	public final MetricsListener metricsListener;
+
+	/**
+	 * If true, Appirater measures how long its own work takes and keeps
+	 * histograms of the durations, see Appirater.getMetrics(). Always true
+	 * when a metricsListener is set.
+	 */
+	public final boolean collectMetrics;
+
+	/**
+	 * If true, Appirater checks whether its own disk and network access
+	 * happens on the main thread and records it, see
+	 * Appirater.getThreadGuard(). For debug builds and tests.
+	 */
+	public final boolean strictMode;
+
+	/**
+	 * If true, such access throws an IllegalStateException before it happens
+	 * instead of only being recorded.
+	 */
+	public final boolean strictModeFailFast;
+
+	private Config(int daysUntilPrompt, int usesUntilPrompt, int timeBeforeReminding, int sigEventsBeforePrompt, EventChannels eventChannels, long eventBatchWindow, int eventBatchSize, RatingRule ratingRule, AppVersion.Granularity versionGranularity, RatingDialogBuilder dialogBuilder, ConnectivityProbe connectivityProbe, long connectivityCacheTtl, Storage storage, long journalCompactionSize, long sessionTimeout, long flushWindow, Clock clock, MetricsListener metricsListener, boolean collectMetrics, boolean strictMode, boolean strictModeFailFast, boolean debug) {
 		this.debug                 = debug;
 		this.daysUntilPrompt       = daysUntilPrompt;
 		this.timeBeforeReminding   = timeBeforeReminding;
 		this.usesUntilPrompt       = usesUntilPrompt;
 		this.sigEventsBeforePrompt = sigEventsBeforePrompt;
+		this.eventChannels         = eventChannels;
+		this.eventBatchWindow      = eventBatchWindow;
+		this.eventBatchSize        = eventBatchSize;
+		this.ratingRule            = ratingRule;
+		this.versionGranularity    = versionGranularity;
 		this.dialogBuilder         = dialogBuilder;
+		this.connectivityProbe     = connectivityProbe;
+		this.connectivityCacheTtl  = connectivityCacheTtl;
+		this.storage               = storage;
+		this.journalCompactionSize = journalCompactionSize;
+		this.sessionTimeout        = sessionTimeout;
+		this.flushWindow           = flushWindow;
+		this.clock                 = clock;
+		this.metricsListener       = metricsListener;
+		this.collectMetrics        = collectMetrics || metricsListener != null;
+		this.strictMode            = strictMode || strictModeFailFast;
+		this.strictModeFailFast    = strictModeFailFast;
 	}
 
 	public static class Builder {
@@ -69,12 +230,36 @@ public class Config {
 		public static final int DEFAULT_USES_UNTIL_PROMPT       = 20;
 		public static final int DEFAULT_SIG_EVENTS_UNTIL_PROMPT = -1;
 		public static final int DEFAULT_TIME_BEFORE_REMINDING   = 1;
+		public static final long DEFAULT_CONNECTIVITY_CACHE_TTL = 60 * 1000L;
+		public static final long DEFAULT_FLUSH_WINDOW           = 2 * 1000L;
+		public static final long DEFAULT_SESSION_TIMEOUT        = 30 * 1000L;
+		public static final long DEFAULT_JOURNAL_COMPACTION_SIZE = 16 * 1024L;
+		public static final int DEFAULT_EVENT_BATCH_SIZE        = 4096;
+		public static final AppVersion.Granularity DEFAULT_VERSION_GRANULARITY = AppVersion.Granularity.MINOR;
 
 		private int daysUntilPrompt;
 		private int usesUntilPrompt;
 		private int timeBeforeReminding;
 		private int sigEventsBeforePrompt;
+		private final List<String> channelNames = new ArrayList<String>();
+		private final List<Integer> channelThresholds = new ArrayList<Integer>();
+		private final List<Integer> channelWeights = new ArrayList<Integer>();
+		private long eventBatchWindow;
+		private int eventBatchSize;
+		private RatingRule ratingRule;
+		private AppVersion.Granularity versionGranularity;
 		private RatingDialogBuilder dialogBuilder;
+		private ConnectivityProbe connectivityProbe;
+		private long connectivityCacheTtl;
+		private Storage storage;
+		private long journalCompactionSize;
+		private long sessionTimeout;
+		private long flushWindow;
+		private Clock clock;
+		private MetricsListener metricsListener;
+		private boolean collectMetrics;
+		private boolean strictMode;
+		private boolean strictModeFailFast;
 		private boolean debug;
 
 		/**
@@ -85,7 +270,16 @@ public class Config {
 			timeBeforeReminding   = DEFAULT_TIME_BEFORE_REMINDING;
 			usesUntilPrompt       = DEFAULT_USES_UNTIL_PROMPT;
 			sigEventsBeforePrompt = DEFAULT_SIG_EVENTS_UNTIL_PROMPT;
+			eventBatchSize        = DEFAULT_EVENT_BATCH_SIZE;
+			versionGranularity    = DEFAULT_VERSION_GRANULARITY;
 			dialogBuilder         = null;
+			connectivityProbe     = null;
+			connectivityCacheTtl  = DEFAULT_CONNECTIVITY_CACHE_TTL;
+			storage               = Storage.SHARED_PREFERENCES;
+			journalCompactionSize = DEFAULT_JOURNAL_COMPACTION_SIZE;
+			sessionTimeout        = DEFAULT_SESSION_TIMEOUT;
+			flushWindow           = DEFAULT_FLUSH_WINDOW;
+			clock                 = Clock.SYSTEM;
 		}
 
 		/**
@@ -138,6 +332,73 @@ public class Config {
 			return this;
 		}
 
+		/**
+		 * Adds a named channel of significant events. Channels get ids 0, 1,
+		 * 2 and so on in the order they are added.
+		 * 
+		 * @param name
+		 *            The name of the channel, also used to store its count.
+		 * @param threshold
+		 *            The number of events needed on this channel before the
+		 *            user is prompted, or 0 for none.
+		 * @param weight
+		 *            How many significant events each event on this channel
+		 *            counts for towards sigEventsBeforePrompt.
+		 * @return This Builder object.
+		 */
+		public Builder addSignificantEventChannel(String name, int threshold, int weight) {
+			channelNames.add(name);
+			channelThresholds.add(threshold);
+			channelWeights.add(weight);
+			return this;
+		}
+
+		/**
+		 * Collects significant events and counts them in batches, for apps
+		 * that report them many times per second.
+		 * 
+		 * @param eventBatchWindow
+		 *            How long events are collected at most, in milliseconds,
+		 *            or 0 to count every event right away.
+		 * @param eventBatchSize
+		 *            The number of events after which a batch is counted
+		 *            before the window has passed.
+		 * @return This Builder object.
+		 */
+		public Builder setEventBatching(long eventBatchWindow, int eventBatchSize) {
+			this.eventBatchWindow = eventBatchWindow;
+			this.eventBatchSize = eventBatchSize;
+			return this;
+		}
+
+		/**
+		 * Replaces the days, uses and significant events thresholds by a
+		 * custom rule, see RatingRule. Channels named by the rule must be
+		 * added with addSignificantEventChannel(), otherwise creating the
+		 * Appirater throws an IllegalArgumentException.
+		 * 
+		 * @param ratingRule
+		 *            The rule, or null for the thresholds.
+		 * @return This Builder object.
+		 */
+		public Builder setRatingRule(RatingRule ratingRule) {
+			this.ratingRule = ratingRule;
+			return this;
+		}
+
+		/**
+		 * Overrides which part of the version has to change before the
+		 * tracking starts from scratch.
+		 * 
+		 * @param versionGranularity
+		 *            MAJOR, MINOR, PATCH or BUILD_CODE.
+		 * @return This Builder object.
+		 */
+		public Builder setVersionGranularity(AppVersion.Granularity versionGranularity) {
+			this.versionGranularity = versionGranularity;
+			return this;
+		}
+
 		/**
 		 * Set a custom dialog builder to create the layout and handle clicks
 		 * @param dialogBuilder To build the alert dialog
@@ -148,6 +409,134 @@ public class Config {
 			return this;
 		}
 
+		/**
+		 * Set a custom check for network availability, for example one that
+		 * always answers true in tests.
+		 * 
+		 * @param connectivityProbe
+		 *            The probe to use, or null for the default.
+		 * @return This Builder object.
+		 */
+		public Builder setConnectivityProbe(ConnectivityProbe connectivityProbe) {
+			this.connectivityProbe = connectivityProbe;
+			return this;
+		}
+
+		/**
+		 * Overrides how long the result of the connectivity check is reused.
+		 * 
+		 * @param connectivityCacheTtl
+		 *            The new value in milliseconds.
+		 * @return This Builder object.
+		 */
+		public Builder setConnectivityCacheTtl(long connectivityCacheTtl) {
+			this.connectivityCacheTtl = connectivityCacheTtl;
+			return this;
+		}
+
+		/**
+		 * Overrides where the settings are kept.
+		 * 
+		 * @param storage
+		 *            SHARED_PREFERENCES, JOURNAL, MAPPED_FILE or MULTI_PROCESS.
+		 * @return This Builder object.
+		 */
+		public Builder setStorage(Storage storage) {
+			this.storage = storage;
+			return this;
+		}
+
+		/**
+		 * Overrides the size above which the journal is compacted.
+		 * 
+		 * @param journalCompactionSize
+		 *            The new value in bytes.
+		 * @return This Builder object.
+		 */
+		public Builder setJournalCompactionSize(long journalCompactionSize) {
+			this.journalCompactionSize = journalCompactionSize;
+			return this;
+		}
+
+		/**
+		 * Overrides how long the app has to be in the background before it
+		 * starts a new session, see Appirater.trackSessions().
+		 * 
+		 * @param sessionTimeout
+		 *            The new value in milliseconds.
+		 * @return This Builder object.
+		 */
+		public Builder setSessionTimeout(long sessionTimeout) {
+			this.sessionTimeout = sessionTimeout;
+			return this;
+		}
+
+		/**
+		 * Overrides how long changes are collected before they are written to
+		 * disk.
+		 * 
+		 * @param flushWindow
+		 *            The new value in milliseconds.
+		 * @return This Builder object.
+		 */
+		public Builder setFlushWindow(long flushWindow) {
+			this.flushWindow = flushWindow;
+			return this;
+		}
+
+		/**
+		 * Set a custom source of the current time.
+		 * 
+		 * @param clock
+		 *            The clock to use.
+		 * @return This Builder object.
+		 */
+		public Builder setClock(Clock clock) {
+			this.clock = clock;
+			return this;
+		}
+
+		/**
+		 * Set a listener for the duration of Appirater's own work. Also
+		 * enables the histograms, see enableMetrics().
+		 * 
+		 * @param metricsListener
+		 *            The listener, or null for none.
+		 * @return This Builder object.
+		 */
+		public Builder setMetricsListener(MetricsListener metricsListener) {
+			this.metricsListener = metricsListener;
+			return this;
+		}
+
+		/**
+		 * Enables the latency histograms returned by Appirater.getMetrics().
+		 * Counters are kept either way.
+		 * 
+		 * @return This Builder object.
+		 */
+		public Builder enableMetrics() {
+			this.collectMetrics = true;
+			return this;
+		}
+
+		/**
+		 * Makes Appirater record when it reads or writes its settings or
+		 * checks the network on the main thread, with the stack and duration
+		 * of each access, see Appirater.getThreadGuard(). Meant for debug
+		 * builds and automated tests.
+		 * 
+		 * @param failFast
+		 *            If true, such access throws an IllegalStateException
+		 *            instead.
+		 * @return This Builder object.
+		 */
+		public Builder enableStrictMode(boolean failFast) {
+			this.strictMode = true;
+			this.strictModeFailFast = failFast;
+			return this;
+		}
+
 		/**
 		 * Enables debugging.
 		 * 
@@ -164,7 +553,17 @@ public class Config {
 		 * @return The Config with custom settings.
 		 */
 		public Config build() {
-			return new Config(daysUntilPrompt, usesUntilPrompt,	timeBeforeReminding, sigEventsBeforePrompt, dialogBuilder, debug);
+			int channels = channelNames.size();
+			int[] thresholds = new int[channels];
+			int[] weights = new int[channels];
+			for (int i = 0; i < channels; ++i) {
+				thresholds[i] = channelThresholds.get(i);
+				weights[i] = channelWeights.get(i);
+			}
+			EventChannels eventChannels = channels == 0 ? EventChannels.NONE
+					: new EventChannels(channelNames.toArray(new String[channels]), thresholds, weights);
+
+			return new Config(daysUntilPrompt, usesUntilPrompt,	timeBeforeReminding, sigEventsBeforePrompt, eventChannels, eventBatchWindow, eventBatchSize, ratingRule, versionGranularity, dialogBuilder, connectivityProbe, connectivityCacheTtl, storage, journalCompactionSize, sessionTimeout, flushWindow, clock, metricsListener, collectMetrics, strictMode, strictModeFailFast, debug);
 		}
 	}
 }
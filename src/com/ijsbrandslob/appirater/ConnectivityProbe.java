@@ -0,0 +1,16 @@
+package com.ijsbrandslob.appirater;
+
+/**
+ * Tells Appirater whether the user can currently reach the store. Appirater
+ * only prompts for a rating while this returns true.
+ * 
+ * Implementations are called from Appirater's background thread and may
+ * block, but should return quickly. Set a custom probe through
+ * Config.Builder.setConnectivityProbe().
+ */
+public interface ConnectivityProbe {
+	/**
+	 * @return true if the network is available.
+	 */
+	public boolean isConnected();
+}
@@ -0,0 +1,59 @@
+package com.ijsbrandslob.appirater;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+/**
+ * The default ConnectivityProbe. Asks the ConnectivityManager for the active
+ * network instead of sending a request over it, so the check is local and
+ * cheap. Requires the ACCESS_NETWORK_STATE permission; without it the
+ * network state can not be known, and the probe tells that the device is
+ * online rather than never prompting.
+ */
+class NetworkInfoConnectivityProbe implements ConnectivityProbe {
+	private final Context mContext;
+
+	// Whether the app holds ACCESS_NETWORK_STATE, null until the first check
+	private volatile Boolean mPermitted;
+
+	NetworkInfoConnectivityProbe(Context context) {
+		mContext = context;
+	}
+
+	public boolean isConnected() {
+		if (!isPermitted())
+			return true;
+
+		try {
+			ConnectivityManager manager = (ConnectivityManager) mContext
+					.getSystemService(Context.CONNECTIVITY_SERVICE);
+			if (manager == null)
+				return false;
+
+			NetworkInfo info = manager.getActiveNetworkInfo();
+			return info != null && info.isConnected();
+		} catch (SecurityException ex) {
+			Log.w("Appirater", ex.toString());
+			mPermitted = false;
+		}
+
+		return true;
+	}
+
+	private boolean isPermitted() {
+		Boolean permitted = mPermitted;
+		if (permitted == null) {
+			permitted = mContext.checkCallingOrSelfPermission(
+					Manifest.permission.ACCESS_NETWORK_STATE) == PackageManager.PERMISSION_GRANTED;
+			if (!permitted)
+				Log.w("Appirater",
+						"No ACCESS_NETWORK_STATE permission, assuming the device is online");
+			mPermitted = permitted;
+		}
+		return permitted;
+	}
+}
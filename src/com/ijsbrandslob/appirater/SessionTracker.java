@@ -0,0 +1,71 @@
+package com.ijsbrandslob.appirater;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.app.Application;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import com.ijsbrandslob.appirater.core.SessionCounter;
+
+/**
+ * Counts a use when the app as a whole comes to the foreground, see
+ * Appirater.trackSessions(). Activities starting each other within the
+ * session timeout, or being recreated after a configuration change, belong
+ * to the same session. Also keeps the resumed Activity attached to the
+ * Appirater so the dialog is shown there.
+ *
+ * Only loaded on API 14 and later. All callbacks arrive on the UI thread.
+ */
+@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+final class SessionTracker implements Application.ActivityLifecycleCallbacks {
+	private final Appirater mAppirater;
+	private final SessionCounter mSessions;
+	private final boolean mCanPromptForRating;
+
+	private SessionTracker(Appirater appirater, long sessionTimeout, boolean canPromptForRating) {
+		mAppirater = appirater;
+		mSessions = new SessionCounter(sessionTimeout);
+		mCanPromptForRating = canPromptForRating;
+	}
+
+	static SessionTracker register(Application application, Appirater appirater,
+			long sessionTimeout, boolean canPromptForRating) {
+		SessionTracker tracker = new SessionTracker(appirater, sessionTimeout,
+				canPromptForRating);
+		application.registerActivityLifecycleCallbacks(tracker);
+		return tracker;
+	}
+
+	void unregister(Application application) {
+		application.unregisterActivityLifecycleCallbacks(this);
+	}
+
+	public void onActivityStarted(Activity activity) {
+		if (mSessions.activityStarted(SystemClock.elapsedRealtime()))
+			mAppirater.appLaunched(mCanPromptForRating);
+	}
+
+	public void onActivityStopped(Activity activity) {
+		mSessions.activityStopped(SystemClock.elapsedRealtime());
+	}
+
+	public void onActivityResumed(Activity activity) {
+		mAppirater.attach(activity);
+	}
+
+	public void onActivityDestroyed(Activity activity) {
+		if (mAppirater.isAttachedTo(activity))
+			mAppirater.detach();
+	}
+
+	public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+	}
+
+	public void onActivityPaused(Activity activity) {
+	}
+
+	public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+	}
+}
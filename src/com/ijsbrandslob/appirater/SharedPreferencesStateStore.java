@@ -0,0 +1,209 @@
+package com.ijsbrandslob.appirater;
+
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.ijsbrandslob.appirater.core.AppVersion;
+import com.ijsbrandslob.appirater.core.EventChannels;
+import com.ijsbrandslob.appirater.core.RatingState;
+import com.ijsbrandslob.appirater.core.RatingStateStore;
+import com.ijsbrandslob.appirater.core.StateRecord;
+
+/**
+ * Stores the RatingState in the SharedPreferences named after the package,
+ * as a StateRecord under the APPIRATER_STATE key. The state and the event
+ * counts are always read and written as a whole, so a crash while the
+ * preferences are written can not leave some of them behind.
+ *
+ * Older releases stored every field under an APPIRATER_ key of its own and
+ * the version name instead of an AppVersion key. A stored name that is still
+ * the installed one takes the installed version code, as the version did not
+ * change since it was stored; any other takes code 0. The first load reads
+ * those keys once from a single snapshot and replaces them with a record in
+ * one commit, so no stale copy of the settings is left behind. Loads run on
+ * Appirater's background thread, so the migration does too.
+ *
+ * A record of a newer format, written by a newer release before the app was
+ * downgraded, is read as far as this release understands it. Writes update
+ * the fields this release knows and keep the other entries as they are, so
+ * the newer settings are there again after the next upgrade.
+ */
+class SharedPreferencesStateStore implements RatingStateStore {
+	static final String APPIRATER_STATE = "APPIRATER_STATE";
+
+	// Settings of older releases, only read to migrate them and then removed
+	static final String APPIRATER_FIRST_USE_DATE = "APPIRATER_FIRST_USE_DATE";
+	static final String APPIRATER_REMINDER_REQUEST_DATE = "APPIRATER_REMINDER_REQUEST_DATE";
+	static final String APPIRATER_USE_COUNT = "APPIRATER_USE_COUNT";
+	static final String APPIRATER_SIG_EVENT_COUNT = "APPIRATER_SIG_EVENT_COUNT";
+	static final String APPIRATER_CURRENT_VERSION_NAME = "APPIRATER_CURRENT_VERSION_NAME";
+	static final String APPIRATER_CURRENT_VERSION_KEY = "APPIRATER_CURRENT_VERSION_KEY";
+	static final String APPIRATER_RATED_CURRENT_VERSION = "APPIRATER_RATED_CURRENT_VERSION";
+	static final String APPIRATER_DECLINED_TO_RATE = "APPIRATER_DECLINED_TO_RATE";
+	// Followed by the channel name
+	static final String APPIRATER_CHANNEL_EVENT_COUNT = "APPIRATER_CHANNEL_EVENT_COUNT_";
+
+	// The keys of the fields, indexed by the bit number of their field
+	private static final String[] LEGACY_KEYS = {
+		APPIRATER_FIRST_USE_DATE, APPIRATER_REMINDER_REQUEST_DATE,
+		APPIRATER_USE_COUNT, APPIRATER_SIG_EVENT_COUNT,
+		APPIRATER_CURRENT_VERSION_KEY, APPIRATER_RATED_CURRENT_VERSION,
+		APPIRATER_DECLINED_TO_RATE
+	};
+
+	private final SharedPreferences mPrefs;
+	private final long mInstalledVersion;
+
+	// The record as last read or written, null until the first load
+	private StateRecord mRecord;
+
+	/*
+	 * The encoded record as we last read or wrote it. A change notification
+	 * for a record that differs from this came from another writer.
+	 */
+	private volatile String mLastKnown;
+
+	private volatile ChangeListener mListener;
+
+	private final SharedPreferences.OnSharedPreferenceChangeListener mPrefsListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+		public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+			ChangeListener listener = mListener;
+			if (listener != null && APPIRATER_STATE.equals(key)
+					&& !prefs.getString(key, "").equals(mLastKnown))
+				listener.onStoreChanged();
+		}
+	};
+
+	/**
+	 * @param installedVersion The AppVersion key of the installed version,
+	 *            for the migration of a stored version name.
+	 */
+	SharedPreferencesStateStore(Context context, long installedVersion) {
+		this(context.getSharedPreferences(context.getPackageName(), Context.MODE_PRIVATE),
+				installedVersion);
+	}
+
+	SharedPreferencesStateStore(SharedPreferences prefs, long installedVersion) {
+		mPrefs = prefs;
+		mInstalledVersion = installedVersion;
+	}
+
+	public RatingState load() {
+		String encoded = mPrefs.getString(APPIRATER_STATE, null);
+		StateRecord record = encoded != null ? StateRecord.decode(encoded) : null;
+		if (record != null) {
+			mLastKnown = encoded;
+		} else {
+			// Not migrated yet, or damaged; either way the keys of older
+			// releases are all there is
+			record = migrate();
+		}
+		mRecord = record;
+		return record.state();
+	}
+
+	public void save(RatingState state, int fields) {
+		record().setState(state, fields);
+		write();
+	}
+
+	public void loadEventCounts(EventChannels channels, int[] counts) {
+		StateRecord record = record();
+		for (int id = 0; id < counts.length; ++id)
+			counts[id] = record.eventCount(channels.name(id), counts[id]);
+	}
+
+	public void saveEventCounts(EventChannels channels, int[] counts) {
+		StateRecord record = record();
+		for (int id = 0; id < counts.length; ++id)
+			record.setEventCount(channels.name(id), counts[id]);
+		write();
+	}
+
+	public void setChangeListener(ChangeListener listener) {
+		if (listener != null && mListener == null)
+			mPrefs.registerOnSharedPreferenceChangeListener(mPrefsListener);
+		else if (listener == null && mListener != null)
+			mPrefs.unregisterOnSharedPreferenceChangeListener(mPrefsListener);
+		mListener = listener;
+	}
+
+	private StateRecord record() {
+		if (mRecord == null)
+			load();
+		return mRecord;
+	}
+
+	private void write() {
+		String encoded = mRecord.encode();
+		mLastKnown = encoded;
+		mPrefs.edit().putString(APPIRATER_STATE, encoded).commit();
+	}
+
+	/*
+	 * Turns the keys of older releases into a record and writes it in their
+	 * place, replacing a damaged one. The counts are kept even if the first
+	 * use date is missing; the RatingEngine then sets it once.
+	 */
+	private StateRecord migrate() {
+		StateRecord record = new StateRecord();
+		Map<String, ?> prefs = mPrefs.getAll();
+		SharedPreferences.Editor editor = mPrefs.edit();
+		boolean found = false;
+
+		long[] values = new long[LEGACY_KEYS.length];
+		int fields = 0;
+		for (int bit = 0; bit < LEGACY_KEYS.length; ++bit) {
+			Object value = prefs.get(LEGACY_KEYS[bit]);
+			if (value instanceof Number) {
+				values[bit] = ((Number) value).longValue();
+				fields |= 1 << bit;
+			} else if (value instanceof Boolean) {
+				values[bit] = (Boolean) value ? 1 : 0;
+				fields |= 1 << bit;
+			}
+			if (prefs.containsKey(LEGACY_KEYS[bit])) {
+				editor.remove(LEGACY_KEYS[bit]);
+				found = true;
+			}
+		}
+
+		if ((fields & RatingState.FIELD_CURRENT_VERSION) == 0) {
+			Object name = prefs.get(APPIRATER_CURRENT_VERSION_NAME);
+			if (name instanceof String && !name.equals("")
+					&& !((String) name).startsWith("-1.")) {
+				long version = AppVersion.key((String) name, 0);
+				if (mInstalledVersion != AppVersion.NONE && !AppVersion.isNewVersion(version,
+						mInstalledVersion, AppVersion.Granularity.PATCH))
+					version = mInstalledVersion;
+				values[Integer.numberOfTrailingZeros(RatingState.FIELD_CURRENT_VERSION)] = version;
+				fields |= RatingState.FIELD_CURRENT_VERSION;
+			}
+		}
+		if (prefs.containsKey(APPIRATER_CURRENT_VERSION_NAME)) {
+			editor.remove(APPIRATER_CURRENT_VERSION_NAME);
+			found = true;
+		}
+
+		for (Map.Entry<String, ?> entry : prefs.entrySet()) {
+			if (!entry.getKey().startsWith(APPIRATER_CHANNEL_EVENT_COUNT))
+				continue;
+			if (entry.getValue() instanceof Number)
+				record.setEventCount(entry.getKey().substring(
+						APPIRATER_CHANNEL_EVENT_COUNT.length()),
+						((Number) entry.getValue()).intValue());
+			editor.remove(entry.getKey());
+			found = true;
+		}
+
+		record.setState(RatingState.fromValues(values, fields), fields);
+		if (found) {
+			String encoded = record.encode();
+			mLastKnown = encoded;
+			editor.putString(APPIRATER_STATE, encoded).commit();
+		}
+		return record;
+	}
+}
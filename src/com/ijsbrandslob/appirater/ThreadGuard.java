@@ -0,0 +1,250 @@
+package com.ijsbrandslob.appirater;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.Looper;
+
+import com.ijsbrandslob.appirater.core.EventChannels;
+import com.ijsbrandslob.appirater.core.RatingState;
+import com.ijsbrandslob.appirater.core.RatingStateStore;
+
+/**
+ * Catches Appirater's own disk and network access on the main thread, see
+ * Config.Builder.enableStrictMode(). Every place where Appirater reads or
+ * writes its settings or checks the network asks the guard first. On the
+ * main thread the access is recorded as a Violation, with the stack of the
+ * caller and how long it took, or fails with an IllegalStateException
+ * before it happens.
+ *
+ * Only created in strict mode; otherwise nothing is wrapped or checked.
+ */
+public final class ThreadGuard {
+	public enum Access {
+		DISK_READ,
+		DISK_WRITE,
+		NETWORK
+	}
+
+	/**
+	 * One access to the disk or network on the main thread.
+	 */
+	public static final class Violation {
+		public final Access access;
+
+		/** What was accessed, like "load" or "saveEventCounts". */
+		public final String operation;
+
+		/** How long the access took, in nanoseconds; 0 if it failed fast. */
+		public final long nanos;
+
+		/** The stack of the thread at the time of the access. */
+		public final Throwable stack;
+
+		Violation(Access access, String operation, long nanos, Throwable stack) {
+			this.access = access;
+			this.operation = operation;
+			this.nanos = nanos;
+			this.stack = stack;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s %s on the main thread, %.3f ms", access,
+					operation, nanos / 1e6);
+		}
+	}
+
+	/**
+	 * Tells whether the calling thread is the main thread.
+	 */
+	interface MainThread {
+		boolean isCurrent();
+	}
+
+	static final MainThread LOOPER = new MainThread() {
+		public boolean isCurrent() {
+			return Looper.myLooper() == Looper.getMainLooper();
+		}
+	};
+
+	// Only the first violations are kept, so a loop can not fill the memory
+	static final int MAX_VIOLATIONS = 100;
+
+	// Returned by enter() when the access is not on the main thread
+	private static final long ALLOWED = Long.MIN_VALUE;
+
+	private final boolean mFailFast;
+	private final boolean mDebug;
+	private final MainThread mMainThread;
+
+	// Guarded by this
+	private final List<Violation> mViolations = new ArrayList<Violation>();
+	private int mCount;
+
+	ThreadGuard(boolean failFast, boolean debug) {
+		this(failFast, debug, LOOPER);
+	}
+
+	ThreadGuard(boolean failFast, boolean debug, MainThread mainThread) {
+		mFailFast = failFast;
+		mDebug = debug;
+		mMainThread = mainThread;
+	}
+
+	/**
+	 * Call before an access.
+	 *
+	 * @return The value to pass to exit().
+	 * @throws IllegalStateException if called on the main thread when failing
+	 *             fast.
+	 */
+	long enter(Access access, String operation) {
+		if (!mMainThread.isCurrent())
+			return ALLOWED;
+
+		if (mFailFast) {
+			Violation violation = record(access, operation, 0);
+			throw new IllegalStateException("Appirater: " + violation, violation.stack);
+		}
+		return System.nanoTime();
+	}
+
+	/**
+	 * Call after the access, also when it failed.
+	 *
+	 * @param entered What enter() returned.
+	 */
+	void exit(Access access, String operation, long entered) {
+		if (entered != ALLOWED)
+			record(access, operation, System.nanoTime() - entered);
+	}
+
+	/**
+	 * Call before an operation that accesses the disk or network somewhere
+	 * along the way, so that failing fast stops it before it starts rather
+	 * than half way through.
+	 *
+	 * @throws IllegalStateException if called on the main thread when failing
+	 *             fast.
+	 */
+	void checkBefore(Access access, String operation) {
+		if (mFailFast)
+			enter(access, operation);
+	}
+
+	/**
+	 * @return The violations in the order they happened, up to the first
+	 *         MAX_VIOLATIONS.
+	 */
+	public synchronized List<Violation> violations() {
+		return new ArrayList<Violation>(mViolations);
+	}
+
+	/**
+	 * @return The number of violations, including the ones that were not
+	 *         kept.
+	 */
+	public synchronized int count() {
+		return mCount;
+	}
+
+	/**
+	 * @return A line per kept violation followed by its stack, for test
+	 *         output or a bug report. Empty if there were none.
+	 */
+	public synchronized String report() {
+		StringBuilder report = new StringBuilder();
+		for (Violation violation : mViolations) {
+			report.append(violation).append('\n');
+			for (StackTraceElement frame : violation.stack.getStackTrace())
+				report.append("\tat ").append(frame).append('\n');
+		}
+		if (mCount > mViolations.size())
+			report.append(mCount - mViolations.size()).append(" more\n");
+		return report.toString();
+	}
+
+	public synchronized void clear() {
+		mViolations.clear();
+		mCount = 0;
+	}
+
+	private Violation record(Access access, String operation, long nanos) {
+		Violation violation = new Violation(access, operation, nanos, new Throwable(
+				"Stack of the access"));
+		synchronized (this) {
+			if (mViolations.size() < MAX_VIOLATIONS)
+				mViolations.add(violation);
+			mCount++;
+		}
+
+		if (mDebug)
+			System.out.println("APPIRATER Strict mode: " + violation);
+		return violation;
+	}
+
+	/**
+	 * @return store, checking every call that reaches the disk.
+	 */
+	RatingStateStore guard(final RatingStateStore store) {
+		return new RatingStateStore() {
+			public RatingState load() {
+				long entered = enter(Access.DISK_READ, "load");
+				try {
+					return store.load();
+				} finally {
+					exit(Access.DISK_READ, "load", entered);
+				}
+			}
+
+			public void save(RatingState state, int fields) {
+				long entered = enter(Access.DISK_WRITE, "save");
+				try {
+					store.save(state, fields);
+				} finally {
+					exit(Access.DISK_WRITE, "save", entered);
+				}
+			}
+
+			public void loadEventCounts(EventChannels channels, int[] counts) {
+				long entered = enter(Access.DISK_READ, "loadEventCounts");
+				try {
+					store.loadEventCounts(channels, counts);
+				} finally {
+					exit(Access.DISK_READ, "loadEventCounts", entered);
+				}
+			}
+
+			public void saveEventCounts(EventChannels channels, int[] counts) {
+				long entered = enter(Access.DISK_WRITE, "saveEventCounts");
+				try {
+					store.saveEventCounts(channels, counts);
+				} finally {
+					exit(Access.DISK_WRITE, "saveEventCounts", entered);
+				}
+			}
+
+			public void setChangeListener(ChangeListener listener) {
+				store.setChangeListener(listener);
+			}
+		};
+	}
+
+	/**
+	 * @return probe, checking every call. Wrap the probe that does the actual
+	 *         check, so answers from a cache do not count.
+	 */
+	ConnectivityProbe guard(final ConnectivityProbe probe) {
+		return new ConnectivityProbe() {
+			public boolean isConnected() {
+				long entered = enter(Access.NETWORK, "isConnected");
+				try {
+					return probe.isConnected();
+				} finally {
+					exit(Access.NETWORK, "isConnected", entered);
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,99 @@
+package com.ijsbrandslob.appirater.core;
+
+/**
+ * Packs an app version into a single long so that two versions can be
+ * compared with one primitive operation.
+ *
+ * The upper 32 bits hold the version name: 12 bits of major number followed
+ * by 10 bits each of minor and patch number. The lower 32 bits hold the
+ * version code. Larger numbers are clamped.
+ */
+public final class AppVersion {
+	/**
+	 * The key of an unknown version. Differs from every real version.
+	 */
+	public static final long NONE = -1;
+
+	/**
+	 * Which part of the version has to change for Appirater to treat it as a
+	 * new version and start tracking it from scratch.
+	 */
+	public enum Granularity {
+		/** Compares the major number of the version name. */
+		MAJOR(0xfff0000000000000L),
+
+		/** Compares the major and minor numbers of the version name. */
+		MINOR(0xfffffc0000000000L),
+
+		/** Compares the major, minor and patch numbers of the version name. */
+		PATCH(0xffffffff00000000L),
+
+		/**
+		 * Compares the version name, like PATCH, and the version code, so a
+		 * new build of the same version name is a new version too.
+		 */
+		BUILD_CODE(0xffffffffffffffffL);
+
+		private final long mMask;
+
+		private Granularity(long mask) {
+			mMask = mask;
+		}
+	}
+
+	private AppVersion() {
+	}
+
+	/**
+	 * @param name A version name like "2.10.3". Parts that are missing count
+	 *            as 0, anything after the digits of a part is ignored.
+	 * @param code The version code.
+	 * @return The key for the version.
+	 */
+	public static long key(String name, int code) {
+		long major = 0, minor = 0, patch = 0;
+		if (name != null) {
+			int part = 0;
+			long value = 0;
+			boolean digits = true;
+			for (int i = 0, length = name.length(); i <= length && part < 3; ++i) {
+				char c = i < length ? name.charAt(i) : '.';
+				if (c == '.') {
+					if (part == 0)
+						major = value;
+					else if (part == 1)
+						minor = value;
+					else
+						patch = value;
+					++part;
+					value = 0;
+					digits = true;
+				} else if (digits && c >= '0' && c <= '9') {
+					value = Math.min(value * 10 + (c - '0'), 0xfff);
+				} else {
+					digits = false;
+				}
+			}
+		}
+
+		return Math.min(major, 0xfff) << 52
+				| Math.min(minor, 0x3ff) << 42
+				| Math.min(patch, 0x3ff) << 32
+				| (code & 0xffffffffL);
+	}
+
+	/**
+	 * Tells whether installed is a new version compared to stored at the
+	 * given granularity. An unknown stored version always counts as new.
+	 */
+	public static boolean isNewVersion(long stored, long installed, Granularity granularity) {
+		return stored == NONE || ((stored ^ installed) & granularity.mMask) != 0;
+	}
+
+	public static String toString(long key) {
+		if (key == NONE)
+			return "none";
+		return String.format("%d.%d.%d (%d)", key >>> 52, (key >>> 42) & 0x3ff,
+				(key >>> 32) & 0x3ff, key & 0xffffffffL);
+	}
+}
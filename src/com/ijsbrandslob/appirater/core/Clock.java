@@ -0,0 +1,22 @@
+package com.ijsbrandslob.appirater.core;
+
+/**
+ * The source of the current time for Appirater. Set a custom Clock through
+ * Config.Builder.setClock(), for example to test how the prompt behaves after
+ * a number of days without waiting for them to pass.
+ */
+public interface Clock {
+	/**
+	 * A Clock backed by System.currentTimeMillis().
+	 */
+	public static final Clock SYSTEM = new Clock() {
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+	};
+
+	/**
+	 * @return The current time in milliseconds since the epoch.
+	 */
+	public long currentTimeMillis();
+}
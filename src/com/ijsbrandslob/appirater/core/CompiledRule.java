@@ -0,0 +1,111 @@
+package com.ijsbrandslob.appirater.core;
+
+/**
+ * A RatingRule flattened into parallel arrays, one entry per operation in
+ * depth-first order. Channel names are resolved to ids up front, so
+ * evaluating the rule only reads arrays and does not allocate.
+ */
+final class CompiledRule {
+	private final int[] mOps;
+	private final int[] mLeft;
+	private final int[] mRight;
+	private final int[] mTermKinds;
+	private final int[] mChannelIds;
+	private final RatingRule.Input[] mInputs;
+	private final long[] mValues;
+	private final EventChannels mChannels;
+
+	private int mSize; // Only used while compiling
+
+	CompiledRule(RatingRule rule, EventChannels channels) {
+		int size = rule.size();
+		mOps        = new int[size];
+		mLeft       = new int[size];
+		mRight      = new int[size];
+		mTermKinds  = new int[size];
+		mChannelIds = new int[size];
+		mInputs     = new RatingRule.Input[size];
+		mValues     = new long[size];
+		mChannels   = channels;
+		add(rule);
+	}
+
+	private int add(RatingRule rule) {
+		final int node = mSize++;
+		mOps[node] = rule.op;
+		mValues[node] = rule.value;
+		mLeft[node] = rule.left != null ? add(rule.left) : -1;
+		mRight[node] = rule.right != null ? add(rule.right) : -1;
+
+		if (rule.term != null) {
+			mTermKinds[node] = rule.term.kind;
+			mInputs[node] = rule.term.input;
+			if (rule.term.kind == RatingRule.TERM_CHANNEL) {
+				mChannelIds[node] = mChannels.id(rule.term.channel);
+				if (mChannelIds[node] < 0)
+					throw new IllegalArgumentException("Unknown event channel " + rule.term.channel);
+			}
+		}
+		return node;
+	}
+
+	/**
+	 * Checks the rule against the state and event counts of engine.
+	 */
+	boolean matches(RatingEngine engine, RatingState state, long now) {
+		return matches(0, engine, state, now);
+	}
+
+	private boolean matches(int node, RatingEngine engine, RatingState state, long now) {
+		switch (mOps[node]) {
+		case RatingRule.OP_AND:
+			return matches(mLeft[node], engine, state, now)
+					&& matches(mRight[node], engine, state, now);
+		case RatingRule.OP_OR:
+			return matches(mLeft[node], engine, state, now)
+					|| matches(mRight[node], engine, state, now);
+		case RatingRule.OP_NOT:
+			return !matches(mLeft[node], engine, state, now);
+		case RatingRule.OP_AT_LEAST:
+			return term(node, engine, state, now) >= mValues[node];
+		case RatingRule.OP_AT_MOST:
+			return term(node, engine, state, now) <= mValues[node];
+		case RatingRule.OP_RATED:
+			return state.ratedCurrentVersion;
+		case RatingRule.OP_DECLINED:
+			return state.declinedToRate;
+		default:
+			throw new IllegalStateException();
+		}
+	}
+
+	private long term(int node, RatingEngine engine, RatingState state, long now) {
+		switch (mTermKinds[node]) {
+		case RatingRule.TERM_USES:
+			return state.useCount;
+		case RatingRule.TERM_DAYS:
+			return state.hasFirstUseDate() ? daysSince(state.firstUseDate, now) : 0;
+		case RatingRule.TERM_SIG_EVENTS:
+			long events = state.significantEventCount;
+			for (int id = 0, size = mChannels.size(); id < size; ++id)
+				events += (long) engine.eventCount(id) * mChannels.weight(id);
+			return events;
+		case RatingRule.TERM_CHANNEL:
+			return engine.eventCount(mChannelIds[node]);
+		case RatingRule.TERM_DAYS_SINCE_REMINDER:
+			return daysSince(state.reminderRequestDate, now);
+		case RatingRule.TERM_INPUT:
+			return mInputs[node].get();
+		case RatingRule.TERM_DAYS_SINCE_INPUT:
+			return daysSince(mInputs[node].get(), now);
+		default:
+			throw new IllegalStateException();
+		}
+	}
+
+	private static long daysSince(long time, long now) {
+		if (time < 0)
+			return Long.MAX_VALUE;
+		return (now - time) / Eligibility.DAY_MILLIS;
+	}
+}
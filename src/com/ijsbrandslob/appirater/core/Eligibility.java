@@ -0,0 +1,107 @@
+package com.ijsbrandslob.appirater.core;
+
+/**
+ * The rating conditions of a RatingPolicy worked out for one RatingState.
+ * Computed once when the state changes, after which checking the conditions
+ * only takes a comparison of the current time against eligibleAt.
+ *
+ * Significant events are not part of eligibleAt, since events on the
+ * channels of the policy do not change the state. RatingEngine checks them
+ * against remainingEvents separately.
+ */
+public final class Eligibility {
+	public static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+	/**
+	 * Returned by eligibleAt when the conditions can not be met by time alone.
+	 */
+	public static final long NEVER = Long.MAX_VALUE;
+
+	/**
+	 * The state and policy these values were computed for.
+	 */
+	public final RatingState state;
+	public final RatingPolicy policy;
+
+	/**
+	 * The earliest time (in milliseconds since the epoch) at which the user may
+	 * be prompted if enough significant events happened, or NEVER.
+	 */
+	public final long eligibleAt;
+
+	/**
+	 * The number of uses still needed before the user may be prompted.
+	 */
+	public final int remainingUses;
+
+	/**
+	 * The number of significant events still needed before the user may be
+	 * prompted, not counting the events on channels.
+	 */
+	public final int remainingEvents;
+
+	/**
+	 * The earliest time at which the time conditions alone are met, or NEVER
+	 * if the user rated or declined. Unlike eligibleAt this ignores the
+	 * remaining uses and events.
+	 */
+	public final long timeEligibleAt;
+
+	private Eligibility(RatingState state, RatingPolicy policy, long eligibleAt, int remainingUses, int remainingEvents, long timeEligibleAt) {
+		this.state           = state;
+		this.policy          = policy;
+		this.eligibleAt      = eligibleAt;
+		this.remainingUses   = remainingUses;
+		this.remainingEvents = remainingEvents;
+		this.timeEligibleAt  = timeEligibleAt;
+	}
+
+	/**
+	 * Tells whether the user is at most one use, one significant event and
+	 * one day away from being prompted.
+	 * 
+	 * @param remainingEvents The significant events still needed, including
+	 *            those on channels.
+	 */
+	public boolean isClose(long now, long remainingEvents) {
+		return remainingUses <= 1 && remainingEvents <= 1
+				&& timeEligibleAt != NEVER && timeEligibleAt - now <= DAY_MILLIS;
+	}
+
+	/**
+	 * When the policy has a rule, only whether the user rated or declined and
+	 * the reminder are taken into account; the thresholds are left to the
+	 * rule.
+	 */
+	public static Eligibility compute(RatingState state, RatingPolicy policy) {
+		final boolean thresholds = policy.rule == null;
+		int remainingUses = thresholds ? Math.max(0, policy.usesUntilPrompt - state.useCount) : 0;
+		int remainingEvents = thresholds ? Math.max(0, policy.sigEventsBeforePrompt - state.significantEventCount) : 0;
+
+		long timeEligibleAt;
+		if (policy.debug) {
+			timeEligibleAt = Long.MIN_VALUE;
+		} else if (state.declinedToRate || state.ratedCurrentVersion
+				|| !state.hasFirstUseDate()) {
+			timeEligibleAt = NEVER;
+		} else {
+			timeEligibleAt = addDays(state.firstUseDate, thresholds ? policy.daysUntilPrompt : 0);
+			if (RatingState.NO_DATE != state.reminderRequestDate)
+				timeEligibleAt = Math.max(timeEligibleAt, addDays(state.reminderRequestDate,
+						policy.timeBeforeReminding));
+		}
+
+		long eligibleAt = timeEligibleAt;
+		if (!policy.debug && remainingUses > 0)
+			eligibleAt = NEVER;
+
+		return new Eligibility(state, policy, eligibleAt, remainingUses, remainingEvents, timeEligibleAt);
+	}
+
+	private static long addDays(long time, int days) {
+		long delta = DAY_MILLIS * days;
+		if (delta > 0 && time > NEVER - delta)
+			return NEVER;
+		return time + delta;
+	}
+}
@@ -0,0 +1,124 @@
+package com.ijsbrandslob.appirater.core;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects significant events for callers that report them at a high rate
+ * and hands them to a RatingEngine in batches. Recording an event adds one
+ * to a counter picked by the calling thread, so threads rarely touch the
+ * same cache line and nothing is allocated. The counters are drained at most
+ * one window after the first event, or sooner once a thread has recorded a
+ * batch worth of events.
+ *
+ * Uses a fixed amount of memory: one counter per stripe for the plain
+ * significant events and one per channel.
+ */
+public class EventAccumulator {
+	public interface DrainScheduler {
+		/**
+		 * Called when the events should be drained. The scheduler should call
+		 * drainTo() after delayMillis, which may be 0.
+		 */
+		public void scheduleDrain(long delayMillis);
+	}
+
+	// Longs per cache line; stripes are kept this far apart
+	private static final int LINE = 8;
+	private static final int MAX_STRIPES = 64;
+
+	private final int mChannels;
+	private final int mStride;
+	private final int mStripeMask;
+	private final long mWindow;
+	private final long mStripeBatch;
+	private final DrainScheduler mScheduler;
+
+	/*
+	 * The counters of stripe s start at s * mStride: the plain events first,
+	 * then one per channel.
+	 */
+	private final AtomicLongArray mCounts;
+	private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+
+	/**
+	 * @param channels The number of event channels of the policy.
+	 * @param windowMillis How long events are collected at most.
+	 * @param batchSize The number of events after which they are drained
+	 *            before the window ends.
+	 * @param scheduler Runs the drains.
+	 */
+	public EventAccumulator(int channels, long windowMillis, int batchSize,
+			DrainScheduler scheduler) {
+		int stripes = Integer.highestOneBit(
+				Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+		stripes = Math.min(stripes, MAX_STRIPES);
+
+		mChannels = channels;
+		mStride = ((channels + 1 + LINE - 1) / LINE + 1) * LINE;
+		mStripeMask = stripes - 1;
+		mWindow = windowMillis;
+		mStripeBatch = Math.max(1, batchSize / stripes);
+		mScheduler = scheduler;
+		mCounts = new AtomicLongArray(stripes * mStride);
+	}
+
+	/**
+	 * Records a significant event, see RatingEngine.recordSignificantEvent().
+	 */
+	public void record() {
+		add(stripe());
+	}
+
+	/**
+	 * Records an event on a channel, see
+	 * RatingEngine.recordSignificantEvent(int).
+	 */
+	public void record(int channelId) {
+		if (channelId < 0 || channelId >= mChannels)
+			throw new IndexOutOfBoundsException("No event channel " + channelId);
+		add(stripe() + 1 + channelId);
+	}
+
+	/**
+	 * Adds the collected events to engine. Called by the DrainScheduler.
+	 *
+	 * @return true if there were any.
+	 */
+	public boolean drainTo(RatingEngine engine) {
+		mDrainScheduled.set(false);
+
+		boolean drained = false;
+		for (int slot = 0; slot <= mChannels; ++slot) {
+			long events = 0;
+			for (int index = slot; index < mCounts.length(); index += mStride)
+				events += mCounts.getAndSet(index, 0);
+			if (events == 0)
+				continue;
+
+			drained = true;
+			int count = (int) Math.min(events, Integer.MAX_VALUE);
+			if (slot == 0)
+				engine.recordSignificantEvents(count);
+			else
+				engine.recordSignificantEvents(slot - 1, count);
+		}
+		return drained;
+	}
+
+	private void add(int index) {
+		long count = mCounts.incrementAndGet(index);
+		if (!mDrainScheduled.get() && mDrainScheduled.compareAndSet(false, true))
+			mScheduler.scheduleDrain(mWindow);
+		else if (count == mStripeBatch)
+			mScheduler.scheduleDrain(0);
+	}
+
+	/*
+	 * @return The index of the first counter of the calling thread's stripe.
+	 */
+	private int stripe() {
+		long id = Thread.currentThread().getId();
+		return (int) ((id ^ (id >>> 16)) & mStripeMask) * mStride;
+	}
+}
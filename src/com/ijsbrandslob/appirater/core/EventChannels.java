@@ -0,0 +1,65 @@
+package com.ijsbrandslob.appirater.core;
+
+/**
+ * The named significant-event channels an app reports to, like
+ * "level_cleared" or "purchase". Each channel has a dense int id, its index
+ * in registration order, so that events can be counted in a primitive array.
+ *
+ * A channel with a threshold above 0 must see that many events before the
+ * user may be prompted. Every event also counts weight times towards
+ * sigEventsBeforePrompt.
+ */
+public final class EventChannels {
+	public static final EventChannels NONE = new EventChannels(new String[0], new int[0], new int[0]);
+
+	private final String[] mNames;
+	private final int[] mThresholds;
+	private final int[] mWeights;
+
+	/**
+	 * @param names The channel names, unique and in id order.
+	 * @param thresholds The number of events needed on each channel.
+	 * @param weights How much each event counts towards sigEventsBeforePrompt.
+	 */
+	public EventChannels(String[] names, int[] thresholds, int[] weights) {
+		if (names.length != thresholds.length || names.length != weights.length)
+			throw new IllegalArgumentException("One threshold and weight per channel");
+		for (int i = 0; i < names.length; ++i) {
+			for (int j = 0; j < i; ++j) {
+				if (names[i].equals(names[j]))
+					throw new IllegalArgumentException("Duplicate channel " + names[i]);
+			}
+		}
+
+		mNames = names.clone();
+		mThresholds = thresholds.clone();
+		mWeights = weights.clone();
+	}
+
+	public int size() {
+		return mNames.length;
+	}
+
+	/**
+	 * @return The id of the named channel, or -1 if there is none.
+	 */
+	public int id(String name) {
+		for (int i = 0; i < mNames.length; ++i) {
+			if (mNames[i].equals(name))
+				return i;
+		}
+		return -1;
+	}
+
+	public String name(int id) {
+		return mNames[id];
+	}
+
+	public int threshold(int id) {
+		return mThresholds[id];
+	}
+
+	public int weight(int id) {
+		return mWeights[id];
+	}
+}
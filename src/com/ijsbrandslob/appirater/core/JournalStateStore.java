@@ -0,0 +1,379 @@
+package com.ijsbrandslob.appirater.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Stores the RatingState in a journal file of its own. Every write appends
+ * one fixed-size record per changed value, so its cost does not depend on
+ * the size of the file. Once the journal grows past the compaction size it
+ * is replaced by a snapshot holding one record per value.
+ *
+ * The journal starts with a header (magic, format) followed by records of
+ * RECORD_SIZE bytes: type, flags, a two-byte part number, key, value and a
+ * CRC32 of the preceding 16 bytes. The records of one write form a batch;
+ * its last record carries FLAG_END_OF_BATCH. Loading replays complete batches only
+ * and cuts off anything after the last one, such as a record that was torn
+ * by a crash.
+ *
+ * Event counts are keyed by a channel slot. A slot is given a name by
+ * channel name records, written before its first count: each holds the
+ * next 8 bytes of the UTF-8 name, padded with zeros, and its part number.
+ */
+public class JournalStateStore implements RatingStateStore {
+	static final int MAGIC = 0x41505052; // "APPR"
+	static final int FORMAT = 1;
+	static final int HEADER_SIZE = 8;
+	static final int RECORD_SIZE = 20;
+
+	private static final byte TYPE_FIELD = 1;
+	private static final byte TYPE_EVENT_COUNT = 2;
+	private static final byte TYPE_CHANNEL_NAME = 3;
+	private static final byte FLAG_END_OF_BATCH = 1;
+
+	private static final int FIELD_COUNT = Integer.bitCount(RatingState.ALL_FIELDS);
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final File mFile;
+	private final long mCompactionSize;
+
+	// The stored values, indexed by the bit number of the RatingState field
+	private final long[] mValues = new long[FIELD_COUNT];
+	private int mStoredFields;
+	private final Map<String, Long> mEventCounts = new LinkedHashMap<String, Long>();
+
+	// The slot of every channel named in the journal
+	private final Map<String, Integer> mChannelSlots = new HashMap<String, Integer>();
+	private int mNextSlot;
+
+	/*
+	 * The length of the valid part of the journal, -1 if it has not been read
+	 * yet and 0 if it has to be rewritten as a whole.
+	 */
+	private long mLength = -1;
+
+	/**
+	 * @param file The journal file.
+	 * @param compactionSize The size in bytes above which the journal is
+	 *            replaced by a snapshot.
+	 */
+	public JournalStateStore(File file, long compactionSize) {
+		mFile = file;
+		mCompactionSize = compactionSize;
+	}
+
+	public RatingState load() {
+		replay();
+		if ((mStoredFields & RatingState.FIELD_FIRST_USE_DATE) == 0)
+			return null;
+
+		return RatingState.fromValues(mValues, mStoredFields);
+	}
+
+	public void save(RatingState state, int fields) {
+		if (mLength < 0)
+			replay();
+
+		ByteBuffer batch = ByteBuffer.allocate(Integer.bitCount(fields) * RECORD_SIZE);
+		CRC32 crc = new CRC32();
+		for (int bit = 0; bit < FIELD_COUNT; ++bit) {
+			if ((fields & (1 << bit)) == 0)
+				continue;
+
+			long value = state.value(1 << bit);
+			mValues[bit] = value;
+			putRecord(batch, crc, TYPE_FIELD, bit, value);
+		}
+		mStoredFields |= fields;
+		append(batch);
+	}
+
+	public void loadEventCounts(EventChannels channels, int[] counts) {
+		if (mLength < 0)
+			replay();
+
+		for (int id = 0; id < counts.length; ++id) {
+			Long count = mEventCounts.get(channels.name(id));
+			if (count != null)
+				counts[id] = count.intValue();
+		}
+	}
+
+	public void saveEventCounts(EventChannels channels, int[] counts) {
+		if (mLength < 0)
+			replay();
+
+		int records = counts.length;
+		for (int id = 0; id < counts.length; ++id) {
+			if (!mChannelSlots.containsKey(channels.name(id)))
+				records += nameRecords(channels.name(id));
+		}
+
+		ByteBuffer batch = ByteBuffer.allocate(records * RECORD_SIZE);
+		CRC32 crc = new CRC32();
+		for (int id = 0; id < counts.length; ++id) {
+			String name = channels.name(id);
+			mEventCounts.put(name, (long) counts[id]);
+			putRecord(batch, crc, TYPE_EVENT_COUNT, slot(batch, crc, name), counts[id]);
+		}
+		append(batch);
+	}
+
+	public void setChangeListener(ChangeListener listener) {
+		// Nobody else writes to the journal
+	}
+
+	/*
+	 * Reads the journal into mValues and mEventCounts and cuts off a torn
+	 * batch at its end.
+	 */
+	private void replay() {
+		mStoredFields = 0;
+		mEventCounts.clear();
+		mChannelSlots.clear();
+		mNextSlot = 0;
+		mLength = 0;
+
+		byte[] journal = readJournal();
+		if (journal == null)
+			return;
+
+		ByteBuffer buffer = ByteBuffer.wrap(journal);
+		if (journal.length < HEADER_SIZE || buffer.getInt(0) != MAGIC
+				|| buffer.getInt(4) != FORMAT)
+			return; // Rewritten as a whole on the next write
+
+		Map<Integer, String> names = new HashMap<Integer, String>();
+		Map<Integer, Long> counts = new HashMap<Integer, Long>();
+
+		CRC32 crc = new CRC32();
+		int valid = HEADER_SIZE;
+		for (int offset = HEADER_SIZE; offset + RECORD_SIZE <= journal.length; offset += RECORD_SIZE) {
+			crc.reset();
+			crc.update(journal, offset, RECORD_SIZE - 4);
+			if ((int) crc.getValue() != buffer.getInt(offset + RECORD_SIZE - 4))
+				break;
+
+			if ((buffer.get(offset + 1) & FLAG_END_OF_BATCH) != 0) {
+				apply(buffer, valid, offset + RECORD_SIZE, names, counts);
+				valid = offset + RECORD_SIZE;
+			}
+		}
+
+		for (Map.Entry<Integer, String> name : names.entrySet()) {
+			mChannelSlots.put(name.getValue(), name.getKey());
+			mNextSlot = Math.max(mNextSlot, name.getKey() + 1);
+			Long count = counts.get(name.getKey());
+			if (count != null)
+				mEventCounts.put(name.getValue(), count);
+		}
+
+		mLength = valid;
+		if (valid < journal.length)
+			truncate(valid);
+	}
+
+	/*
+	 * Applies the records between start and end, which form complete batches.
+	 * Collects the channel names and the counts by slot.
+	 */
+	private void apply(ByteBuffer buffer, int start, int end, Map<Integer, String> names,
+			Map<Integer, Long> counts) {
+		ByteArrayOutputStream name = new ByteArrayOutputStream();
+		for (int offset = start; offset < end; offset += RECORD_SIZE) {
+			int key = buffer.getInt(offset + 4);
+			long value = buffer.getLong(offset + 8);
+			if (buffer.get(offset) == TYPE_FIELD && key >= 0 && key < FIELD_COUNT) {
+				mValues[key] = value;
+				mStoredFields |= 1 << key;
+			} else if (buffer.get(offset) == TYPE_EVENT_COUNT) {
+				counts.put(key, value);
+			} else if (buffer.get(offset) == TYPE_CHANNEL_NAME) {
+				if (buffer.getShort(offset + 2) == 0)
+					name.reset();
+				for (int i = 0; i < 8 && buffer.get(offset + 8 + i) != 0; ++i)
+					name.write(buffer.get(offset + 8 + i));
+
+				boolean last = offset + RECORD_SIZE >= end
+						|| buffer.get(offset + RECORD_SIZE) != TYPE_CHANNEL_NAME
+						|| buffer.getShort(offset + RECORD_SIZE + 2) == 0;
+				if (last)
+					names.put(key, new String(name.toByteArray(), UTF_8));
+			}
+		}
+	}
+
+	/*
+	 * Appends a batch, or writes a snapshot when the journal would grow too
+	 * large. The values of the batch must already be in mValues.
+	 */
+	private void append(ByteBuffer batch) {
+		if (batch.position() == 0)
+			return;
+
+		if (mLength == 0 || mLength + batch.position() > mCompactionSize) {
+			compact();
+			return;
+		}
+
+		markEndOfBatch(batch);
+		try {
+			RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+			try {
+				file.seek(mLength);
+				file.write(batch.array(), 0, batch.position());
+				file.getFD().sync();
+			} finally {
+				file.close();
+			}
+			mLength += batch.position();
+		} catch (IOException ex) {
+			// The values are still in memory; write all of them next time
+			mLength = 0;
+		}
+	}
+
+	/*
+	 * Replaces the journal by one holding a single batch with every stored
+	 * value. Written to a temporary file first, so a crash leaves either the
+	 * old or the new journal.
+	 */
+	private void compact() {
+		// Only the slots of channels with a count are kept
+		mChannelSlots.clear();
+		mNextSlot = 0;
+		int records = Integer.bitCount(mStoredFields) + mEventCounts.size();
+		for (String name : mEventCounts.keySet())
+			records += nameRecords(name);
+		ByteBuffer snapshot = ByteBuffer.allocate(HEADER_SIZE + records * RECORD_SIZE);
+		snapshot.putInt(MAGIC).putInt(FORMAT);
+
+		CRC32 crc = new CRC32();
+		for (int bit = 0; bit < FIELD_COUNT; ++bit) {
+			if ((mStoredFields & (1 << bit)) != 0)
+				putRecord(snapshot, crc, TYPE_FIELD, bit, mValues[bit]);
+		}
+		for (Map.Entry<String, Long> count : mEventCounts.entrySet()) {
+			putRecord(snapshot, crc, TYPE_EVENT_COUNT, slot(snapshot, crc, count.getKey()),
+					count.getValue());
+		}
+		if (records > 0)
+			markEndOfBatch(snapshot);
+
+		File temp = new File(mFile.getPath() + ".tmp");
+		try {
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				out.write(snapshot.array(), 0, snapshot.position());
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(mFile))
+				throw new IOException("Could not replace " + mFile);
+			mLength = snapshot.position();
+		} catch (IOException ex) {
+			temp.delete();
+			mLength = 0;
+		}
+	}
+
+	private byte[] readJournal() {
+		if (!mFile.exists())
+			return null;
+
+		try {
+			FileInputStream in = new FileInputStream(mFile);
+			try {
+				byte[] journal = new byte[(int) Math.min(mFile.length(), Integer.MAX_VALUE)];
+				int read = 0, n;
+				while (read < journal.length
+						&& (n = in.read(journal, read, journal.length - read)) > 0)
+					read += n;
+				if (read < journal.length) {
+					byte[] shorter = new byte[read];
+					System.arraycopy(journal, 0, shorter, 0, read);
+					journal = shorter;
+				}
+				return journal;
+			} finally {
+				in.close();
+			}
+		} catch (IOException ex) {
+			return null;
+		}
+	}
+
+	private void truncate(long length) {
+		try {
+			RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+			try {
+				file.setLength(length);
+			} finally {
+				file.close();
+			}
+		} catch (IOException ex) {
+			mLength = 0;
+		}
+	}
+
+	/*
+	 * @return The slot of the named channel. A new slot is named in buffer.
+	 */
+	private int slot(ByteBuffer buffer, CRC32 crc, String name) {
+		Integer slot = mChannelSlots.get(name);
+		if (slot != null)
+			return slot;
+
+		slot = mNextSlot++;
+		mChannelSlots.put(name, slot);
+		byte[] bytes = name.getBytes(UTF_8);
+		for (int part = 0; part < nameRecords(name); ++part) {
+			long value = 0;
+			for (int i = 0; i < 8; ++i) {
+				int index = part * 8 + i;
+				value = value << 8 | (index < bytes.length ? bytes[index] & 0xff : 0);
+			}
+			putRecord(buffer, crc, TYPE_CHANNEL_NAME, (short) part, slot, value);
+		}
+		return slot;
+	}
+
+	private static int nameRecords(String name) {
+		return Math.max(1, (name.getBytes(UTF_8).length + 7) / 8);
+	}
+
+	private static void putRecord(ByteBuffer buffer, CRC32 crc, byte type, int key, long value) {
+		putRecord(buffer, crc, type, (short) 0, key, value);
+	}
+
+	private static void putRecord(ByteBuffer buffer, CRC32 crc, byte type, short part, int key,
+			long value) {
+		int start = buffer.position();
+		buffer.put(type).put((byte) 0).putShort(part).putInt(key).putLong(value);
+		crc.reset();
+		crc.update(buffer.array(), start, RECORD_SIZE - 4);
+		buffer.putInt((int) crc.getValue());
+	}
+
+	/*
+	 * Sets the end of batch flag on the last record and updates its CRC.
+	 */
+	private static void markEndOfBatch(ByteBuffer buffer) {
+		int last = buffer.position() - RECORD_SIZE;
+		buffer.put(last + 1, FLAG_END_OF_BATCH);
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), last, RECORD_SIZE - 4);
+		buffer.putInt(last + RECORD_SIZE - 4, (int) crc.getValue());
+	}
+}
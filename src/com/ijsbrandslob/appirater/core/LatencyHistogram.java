@@ -0,0 +1,92 @@
+package com.ijsbrandslob.appirater.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations with one bucket per power of two
+ * nanoseconds. Recording is a few atomic adds and never allocates;
+ * percentiles are accurate to within a factor of two.
+ */
+public final class LatencyHistogram {
+	private static final int BUCKETS = 64;
+
+	private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong mCount = new AtomicLong();
+	private final AtomicLong mTotal = new AtomicLong();
+	private final AtomicLong mMax = new AtomicLong();
+
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+
+		mBuckets.incrementAndGet(bucketOf(nanos));
+		mCount.incrementAndGet();
+		mTotal.addAndGet(nanos);
+
+		long max;
+		while (nanos > (max = mMax.get()) && !mMax.compareAndSet(max, nanos))
+			;
+	}
+
+	public Snapshot snapshot() {
+		long[] buckets = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; ++i)
+			buckets[i] = mBuckets.get(i);
+		return new Snapshot(buckets, mCount.get(), mTotal.get(), mMax.get());
+	}
+
+	private static int bucketOf(long nanos) {
+		return BUCKETS - Long.numberOfLeadingZeros(nanos);
+	}
+
+	/**
+	 * The contents of a LatencyHistogram at one point in time.
+	 */
+	public static final class Snapshot {
+		private final long[] mBuckets;
+
+		public final long count;
+		public final long totalNanos;
+		public final long maxNanos;
+
+		Snapshot(long[] buckets, long count, long totalNanos, long maxNanos) {
+			mBuckets        = buckets;
+			this.count      = count;
+			this.totalNanos = totalNanos;
+			this.maxNanos   = maxNanos;
+		}
+
+		public long meanNanos() {
+			return count == 0 ? 0 : totalNanos / count;
+		}
+
+		/**
+		 * @param percentile A value between 0 and 100.
+		 * @return An upper bound for the duration below which the given
+		 *         percentage of the recorded durations fall.
+		 */
+		public long percentileNanos(double percentile) {
+			long total = 0;
+			for (long bucket : mBuckets)
+				total += bucket;
+			if (total == 0)
+				return 0;
+
+			long rank = (long) Math.ceil(total * percentile / 100.0);
+			long seen = 0;
+			for (int i = 0; i < mBuckets.length; ++i) {
+				seen += mBuckets[i];
+				if (seen >= rank && seen > 0)
+					return i == 0 ? 0 : Math.min(maxNanos, (1L << i) - 1);
+			}
+			return maxNanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("count=%d mean=%dns p50=%dns p99=%dns max=%dns",
+					count, meanNanos(), percentileNanos(50), percentileNanos(99), maxNanos);
+		}
+	}
+}
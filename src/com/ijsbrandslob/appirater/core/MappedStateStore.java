@@ -0,0 +1,331 @@
+package com.ijsbrandslob.appirater.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * Stores the RatingState in a small binary file of fixed layout that is
+ * mapped into memory. Loading reads a few bytes instead of parsing a file,
+ * and writes change the mapped file in place.
+ *
+ * The file starts with a header (magic, format, number of event channels,
+ * size of the names) and the UTF-8 names of the channels, each preceded by
+ * its length and all followed by a CRC32. Then come two slots. Each slot
+ * holds a sequence number, the stored values, the event counts in the order
+ * of the names and a CRC32 of all of these. A write fills the slot that is
+ * not in use and so becomes the newest one; loading takes the newest slot
+ * with a valid CRC. A write that was torn by a crash therefore
+ * leaves the previous values. When the channels change the file is written
+ * to a temporary file and renamed over the old one.
+ *
+ * Writes reach the disk when the system writes back the mapped pages, which
+ * it does even if the process is killed right after the write.
+ */
+public class MappedStateStore implements RatingStateStore {
+	static final int MAGIC = 0x41505053; // "APPS"
+	static final int FORMAT = 1;
+	static final int HEADER_SIZE = 16;
+
+	private static final int FIELD_COUNT = Integer.bitCount(RatingState.ALL_FIELDS);
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	// Offsets within a slot
+	private static final int SLOT_SEQUENCE = 0;
+	private static final int SLOT_STORED_FIELDS = 8;
+	private static final int SLOT_VALUES = 16;
+	private static final int SLOT_EVENT_COUNTS = SLOT_VALUES + 8 * FIELD_COUNT;
+
+	private final File mFile;
+
+	private MappedByteBuffer mBuffer; // null until the file is valid
+	private boolean mOpened;
+	private int mActiveSlot;
+	private long mSequence;
+
+	// The values of the newest slot
+	private final long[] mValues = new long[FIELD_COUNT];
+	private int mStoredFields;
+	private String[] mChannelNames = new String[0];
+	private int[] mEventCounts = new int[0];
+
+	// The names section of the file and so the offset of the slots
+	private byte[] mNames = encodeNames(mChannelNames);
+
+	// A slot is put together here before it is copied to the file
+	private byte[] mSlot = new byte[slotSize(0)];
+	private final CRC32 mCrc = new CRC32();
+
+	public MappedStateStore(File file) {
+		mFile = file;
+	}
+
+	public RatingState load() {
+		open();
+		if ((mStoredFields & RatingState.FIELD_FIRST_USE_DATE) == 0)
+			return null;
+
+		return RatingState.fromValues(mValues, mStoredFields);
+	}
+
+	public void save(RatingState state, int fields) {
+		open();
+		for (int bit = 0; bit < FIELD_COUNT; ++bit) {
+			if ((fields & (1 << bit)) != 0)
+				mValues[bit] = state.value(1 << bit);
+		}
+		mStoredFields |= fields;
+		write();
+	}
+
+	public void loadEventCounts(EventChannels channels, int[] counts) {
+		open();
+		for (int id = 0; id < counts.length; ++id) {
+			int index = indexOf(mChannelNames, channels.name(id));
+			if (index >= 0)
+				counts[id] = mEventCounts[index];
+		}
+	}
+
+	public void saveEventCounts(EventChannels channels, int[] counts) {
+		open();
+		boolean sameLayout = counts.length == mChannelNames.length;
+		for (int id = 0; sameLayout && id < counts.length; ++id)
+			sameLayout = mChannelNames[id].equals(channels.name(id));
+
+		if (!sameLayout)
+			setChannels(channels);
+		System.arraycopy(counts, 0, mEventCounts, 0, counts.length);
+		write();
+	}
+
+	public void setChangeListener(ChangeListener listener) {
+		// Nobody else writes to the file
+	}
+
+	/*
+	 * Maps the file and reads the newest valid slot, once.
+	 */
+	private void open() {
+		if (mOpened)
+			return;
+		mOpened = true;
+
+		if (!mFile.exists() || mFile.length() < HEADER_SIZE)
+			return;
+
+		MappedByteBuffer buffer;
+		try {
+			buffer = map(mFile.length());
+		} catch (IOException ex) {
+			return;
+		}
+
+		int channels = buffer.getInt(8);
+		int namesSize = buffer.getInt(12);
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT || channels < 0
+				|| namesSize < 0
+				|| buffer.capacity() != HEADER_SIZE + namesSize + 2L * slotSize(channels))
+			return;
+
+		String[] names = decodeNames(buffer, channels, namesSize);
+		if (names == null)
+			return;
+
+		mChannelNames = names;
+		mNames = encodeNames(names);
+		mSlot = new byte[slotSize(channels)];
+		long sequence0 = readSlot(buffer, 0);
+		long sequence1 = readSlot(buffer, 1);
+		mBuffer = buffer;
+		mEventCounts = new int[names.length];
+		if (sequence0 < 0 && sequence1 < 0) {
+			mActiveSlot = 1; // Nothing valid, the next write goes to slot 0
+			return;
+		}
+
+		mActiveSlot = sequence0 >= sequence1 ? 0 : 1;
+		mSequence = Math.max(sequence0, sequence1);
+		readSlot(buffer, mActiveSlot);
+
+		ByteBuffer slot = ByteBuffer.wrap(mSlot);
+		mStoredFields = slot.getInt(SLOT_STORED_FIELDS);
+		for (int bit = 0; bit < FIELD_COUNT; ++bit)
+			mValues[bit] = slot.getLong(SLOT_VALUES + 8 * bit);
+		for (int i = 0; i < channels; ++i)
+			mEventCounts[i] = (int) slot.getLong(SLOT_EVENT_COUNTS + 8 * i);
+	}
+
+	/*
+	 * Switches to the given channels with counts of 0. The file is rewritten
+	 * with the new layout on the next write.
+	 */
+	private void setChannels(EventChannels channels) {
+		mChannelNames = new String[channels.size()];
+		for (int id = 0; id < mChannelNames.length; ++id)
+			mChannelNames[id] = channels.name(id);
+		mEventCounts = new int[mChannelNames.length];
+		mNames = encodeNames(mChannelNames);
+		mSlot = new byte[slotSize(mChannelNames.length)];
+		mBuffer = null;
+	}
+
+	/*
+	 * Copies a slot into mSlot.
+	 *
+	 * @return Its sequence number, or -1 if its CRC does not match.
+	 */
+	private long readSlot(ByteBuffer buffer, int index) {
+		buffer.position(HEADER_SIZE + mNames.length + index * mSlot.length);
+		buffer.get(mSlot);
+
+		mCrc.reset();
+		mCrc.update(mSlot, 0, mSlot.length - 4);
+		ByteBuffer slot = ByteBuffer.wrap(mSlot);
+		if ((int) mCrc.getValue() != slot.getInt(mSlot.length - 4))
+			return -1;
+		return slot.getLong(SLOT_SEQUENCE);
+	}
+
+	/*
+	 * Writes the values to the slot not in use, or the whole file if it does
+	 * not have the right layout yet.
+	 */
+	private void write() {
+		fillSlot(mSequence + 1);
+		if (mBuffer == null) {
+			rewrite();
+			return;
+		}
+
+		int slot = 1 - mActiveSlot;
+		mBuffer.position(HEADER_SIZE + mNames.length + slot * mSlot.length);
+		mBuffer.put(mSlot);
+		mActiveSlot = slot;
+		mSequence++;
+	}
+
+	/*
+	 * Writes a new file holding the values in mSlot to a temporary file,
+	 * renames it over the old one and maps it.
+	 */
+	private void rewrite() {
+		ByteBuffer file = ByteBuffer.allocate(HEADER_SIZE + mNames.length + 2 * mSlot.length);
+		file.putInt(MAGIC).putInt(FORMAT).putInt(mChannelNames.length).putInt(mNames.length);
+		file.put(mNames).put(mSlot);
+
+		File temp = new File(mFile.getPath() + ".tmp");
+		try {
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				out.write(file.array());
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(mFile))
+				throw new IOException("Could not replace " + mFile);
+
+			mBuffer = map(file.capacity());
+			mActiveSlot = 0;
+			mSequence++;
+		} catch (IOException ex) {
+			// The values are still in memory; try again on the next write
+			temp.delete();
+			mBuffer = null;
+		}
+	}
+
+	private void fillSlot(long sequence) {
+		ByteBuffer slot = ByteBuffer.wrap(mSlot);
+		slot.putLong(SLOT_SEQUENCE, sequence);
+		slot.putInt(SLOT_STORED_FIELDS, mStoredFields);
+		for (int bit = 0; bit < FIELD_COUNT; ++bit)
+			slot.putLong(SLOT_VALUES + 8 * bit, mValues[bit]);
+		for (int i = 0; i < mEventCounts.length; ++i)
+			slot.putLong(SLOT_EVENT_COUNTS + 8 * i, mEventCounts[i]);
+
+		mCrc.reset();
+		mCrc.update(mSlot, 0, mSlot.length - 4);
+		slot.putInt(mSlot.length - 4, (int) mCrc.getValue());
+	}
+
+	private MappedByteBuffer map(long size) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+		try {
+			return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			file.close();
+		}
+	}
+
+	private static int indexOf(String[] names, String name) {
+		for (int i = 0; i < names.length; ++i) {
+			if (names[i].equals(name))
+				return i;
+		}
+		return -1;
+	}
+
+	/*
+	 * The length and UTF-8 bytes of every name and a CRC32, rounded up to 8
+	 * bytes.
+	 */
+	private static byte[] encodeNames(String[] names) {
+		int size = 4;
+		byte[][] encoded = new byte[names.length][];
+		for (int i = 0; i < names.length; ++i) {
+			encoded[i] = names[i].getBytes(UTF_8);
+			size += 2 + encoded[i].length;
+		}
+
+		ByteBuffer section = ByteBuffer.allocate((size + 7) & ~7);
+		for (int i = 0; i < names.length; ++i)
+			section.putShort((short) encoded[i].length).put(encoded[i]);
+		CRC32 crc = new CRC32();
+		crc.update(section.array(), 0, section.position());
+		section.putInt((int) crc.getValue());
+		return section.array();
+	}
+
+	/*
+	 * @return The names, or null if the section is damaged.
+	 */
+	private static String[] decodeNames(ByteBuffer buffer, int channels, int size) {
+		if (size < 4 || size > buffer.capacity() - HEADER_SIZE)
+			return null;
+		byte[] section = new byte[size];
+		buffer.position(HEADER_SIZE);
+		buffer.get(section);
+
+		ByteBuffer names = ByteBuffer.wrap(section);
+		String[] decoded = new String[channels];
+		for (int i = 0; i < channels; ++i) {
+			if (names.remaining() < 2 + 4)
+				return null;
+			int length = names.getShort() & 0xffff;
+			if (names.remaining() < length + 4)
+				return null;
+			decoded[i] = new String(section, names.position(), length, UTF_8);
+			names.position(names.position() + length);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(section, 0, names.position());
+		return (int) crc.getValue() == names.getInt() ? decoded : null;
+	}
+
+	/*
+	 * Sequence, stored fields, reserved, values, count per channel and the
+	 * CRC, rounded up to 8 bytes.
+	 */
+	private static int slotSize(int channels) {
+		return (SLOT_EVENT_COUNTS + 8 * channels + 4 + 7) & ~7;
+	}
+}
@@ -0,0 +1,132 @@
+package com.ijsbrandslob.appirater.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for Appirater's own work.
+ *
+ * Counters are always kept, they cost one atomic add. Durations are only
+ * measured when timing is enabled, which is the case when a MetricsListener
+ * is registered; otherwise start() and stop() do not even read the clock.
+ */
+public final class Metrics {
+	public enum Operation {
+		/** Reading the stored state. */
+		LOAD,
+		/** Writing changed fields to the store. */
+		SAVE,
+		/** Checking whether the network is available. */
+		CONNECTIVITY_PROBE,
+		/** Building the rating dialog. */
+		BUILD_DIALOG,
+		/** Time from posting the prompt to the Handler until it ran. */
+		HANDLER_DISPATCH
+	}
+
+	public enum Counter {
+		USES,
+		SIGNIFICANT_EVENTS,
+		PROMPTS_SHOWN,
+		RATED,
+		REMIND_LATER,
+		DECLINED
+	}
+
+	private static final Operation[] OPERATIONS = Operation.values();
+	private static final Counter[] COUNTERS = Counter.values();
+
+	private final MetricsListener mListener;
+	private final boolean mTiming;
+	private final LatencyHistogram[] mHistograms;
+	private final AtomicLongArray mCounters = new AtomicLongArray(COUNTERS.length);
+
+	/**
+	 * @param listener Told about every timing, may be null.
+	 * @param timing Whether durations are measured. Always true when there
+	 *            is a listener.
+	 */
+	public Metrics(MetricsListener listener, boolean timing) {
+		mListener = listener;
+		mTiming = timing || listener != null;
+		mHistograms = new LatencyHistogram[OPERATIONS.length];
+		for (int i = 0; i < OPERATIONS.length; ++i)
+			mHistograms[i] = new LatencyHistogram();
+	}
+
+	public boolean isTiming() {
+		return mTiming;
+	}
+
+	/**
+	 * @return The start time to pass to stop(), or 0 when timing is off.
+	 */
+	public long start() {
+		return mTiming ? System.nanoTime() : 0;
+	}
+
+	public void stop(Operation operation, long start) {
+		if (mTiming)
+			record(operation, System.nanoTime() - start);
+	}
+
+	public void record(Operation operation, long nanos) {
+		if (!mTiming)
+			return;
+
+		mHistograms[operation.ordinal()].record(nanos);
+		MetricsListener listener = mListener;
+		if (listener != null)
+			listener.onTiming(operation, nanos);
+	}
+
+	public void count(Counter counter) {
+		mCounters.incrementAndGet(counter.ordinal());
+	}
+
+	public void count(Counter counter, long delta) {
+		mCounters.addAndGet(counter.ordinal(), delta);
+	}
+
+	public Snapshot snapshot() {
+		long[] counters = new long[COUNTERS.length];
+		for (int i = 0; i < counters.length; ++i)
+			counters[i] = mCounters.get(i);
+
+		LatencyHistogram.Snapshot[] histograms = new LatencyHistogram.Snapshot[OPERATIONS.length];
+		for (int i = 0; i < histograms.length; ++i)
+			histograms[i] = mHistograms[i].snapshot();
+
+		return new Snapshot(counters, histograms);
+	}
+
+	/**
+	 * The counters and histograms at one point in time.
+	 */
+	public static final class Snapshot {
+		private final long[] mCounters;
+		private final LatencyHistogram.Snapshot[] mHistograms;
+
+		Snapshot(long[] counters, LatencyHistogram.Snapshot[] histograms) {
+			mCounters = counters;
+			mHistograms = histograms;
+		}
+
+		public long count(Counter counter) {
+			return mCounters[counter.ordinal()];
+		}
+
+		public LatencyHistogram.Snapshot latency(Operation operation) {
+			return mHistograms[operation.ordinal()];
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder result = new StringBuilder();
+			for (Counter counter : COUNTERS)
+				result.append(counter).append('=').append(count(counter)).append('\n');
+			for (Operation operation : OPERATIONS)
+				result.append(operation).append(": ").append(latency(operation)).append('\n');
+			return result.toString();
+		}
+	}
+}
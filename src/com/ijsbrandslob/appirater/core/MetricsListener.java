@@ -0,0 +1,17 @@
+package com.ijsbrandslob.appirater.core;
+
+/**
+ * Receives the duration of Appirater's own work as it happens. Register one
+ * through Config.Builder.setMetricsListener() to forward the timings to your
+ * own monitoring.
+ *
+ * Called on the thread that did the work, which may be the UI thread, so
+ * implementations must return quickly.
+ */
+public interface MetricsListener {
+	/**
+	 * @param operation What was timed.
+	 * @param nanos How long it took, in nanoseconds.
+	 */
+	public void onTiming(Metrics.Operation operation, long nanos);
+}
@@ -0,0 +1,579 @@
+package com.ijsbrandslob.appirater.core;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Decides when the user should be prompted to rate the app. Holds the current
+ * RatingState in memory, applies every change to it without locking and
+ * writes changed fields through a RatingStateStore.
+ *
+ * This class does not depend on Android, so it can be tested and profiled on
+ * a plain JVM with an in-memory store and a fake Clock.
+ */
+public class RatingEngine {
+	public interface WriteScheduler {
+		/**
+		 * Called when the state has fields that need to be written. The
+		 * scheduler should call RatingEngine.flush() at some later point.
+		 */
+		public void scheduleWrite();
+	}
+
+	// Replaced by setPolicy(); read once per check, through mEligibility
+	private volatile RatingPolicy mPolicy;
+	private final RatingStateStore mStore;
+	private final Clock mClock;
+	private final Metrics mMetrics;
+
+	/*
+	 * Everything we track. Changes are made by swapping in a new snapshot
+	 * with compareAndSet(), see update().
+	 */
+	private final AtomicReference<RatingState> mState = new AtomicReference<RatingState>(
+			RatingState.EMPTY);
+
+	/*
+	 * The events on each channel of the policy, indexed by channel id. Kept
+	 * outside of mState so that recording one does not allocate.
+	 */
+	private final AtomicIntegerArray mEventCounts;
+	private final AtomicBoolean mEventCountsDirty = new AtomicBoolean();
+
+	/*
+	 * Significant events recorded before the first load, in total and per
+	 * channel. They are added to the loaded counts, after which the counters
+	 * are set to CLOSED and events are recorded directly.
+	 */
+	private static final int CLOSED = Integer.MIN_VALUE;
+	private final AtomicInteger mPendingEvents = new AtomicInteger();
+	private final AtomicIntegerArray mPendingEventCounts;
+	private volatile boolean mLoaded;
+
+	// The rating conditions worked out for the latest state
+	private volatile Eligibility mEligibility;
+
+	private volatile WriteScheduler mWriteScheduler;
+	private final AtomicBoolean mWriteScheduled = new AtomicBoolean();
+
+	// Held while the store is read or written
+	private final Object mStoreLock = new Object();
+
+	/*
+	 * The state and event counts as last read from or written to the store,
+	 * guarded by mStoreLock. Counts loaded later are added on top of what was
+	 * counted since, so increments made by another writer are not lost.
+	 */
+	private RatingState mStored = RatingState.EMPTY;
+	private int[] mStoredCounts;
+
+	/*
+	 * mState is the authoritative copy; the store is only read again once
+	 * another writer has changed it.
+	 */
+	private volatile boolean mStoreChanged;
+	private final AtomicBoolean mWatchingStore = new AtomicBoolean();
+
+	private final RatingStateStore.ChangeListener mStoreListener = new RatingStateStore.ChangeListener() {
+		public void onStoreChanged() {
+			mStoreChanged = true;
+		}
+	};
+
+	private static final RatingState.Transition DECLINED = new RatingState.Transition() {
+		public RatingState apply(RatingState state) {
+			return state.withDeclinedToRate(true);
+		}
+	};
+
+	private static final RatingState.Transition SIGNIFICANT_EVENT = new RatingState.Transition() {
+		public RatingState apply(RatingState state) {
+			return state.withSignificantEvents(1);
+		}
+	};
+
+	private static final RatingState.Transition ALL_DIRTY = new RatingState.Transition() {
+		public RatingState apply(RatingState state) {
+			return state.withDirtyFields(RatingState.ALL_FIELDS);
+		}
+	};
+
+	public RatingEngine(RatingPolicy policy, RatingStateStore store, Clock clock) {
+		this(policy, store, clock, new Metrics(null, false));
+	}
+
+	public RatingEngine(RatingPolicy policy, RatingStateStore store, Clock clock, Metrics metrics) {
+		mPolicy = policy;
+		mStore = store;
+		mClock = clock;
+		mMetrics = metrics;
+		mEventCounts = new AtomicIntegerArray(policy.eventChannels.size());
+		mPendingEventCounts = new AtomicIntegerArray(policy.eventChannels.size());
+		mStoredCounts = new int[policy.eventChannels.size()];
+		mEligibility = Eligibility.compute(RatingState.EMPTY, policy);
+	}
+
+	/**
+	 * Sets who is told that there are changes to write. Without a scheduler
+	 * changes are only written by flush().
+	 */
+	public void setWriteScheduler(WriteScheduler writeScheduler) {
+		mWriteScheduler = writeScheduler;
+	}
+
+	public RatingPolicy policy() {
+		return mPolicy;
+	}
+
+	/**
+	 * Replaces the policy without touching the state. The rating conditions
+	 * are worked out again on the next check; a check that is already running
+	 * finishes with the policy it started with.
+	 *
+	 * @throws IllegalArgumentException if policy has other event channels.
+	 */
+	public void setPolicy(RatingPolicy policy) {
+		if (!policy.hasSameChannels(mPolicy))
+			throw new IllegalArgumentException("The event channels can not be changed");
+		mPolicy = policy;
+	}
+
+	public Clock clock() {
+		return mClock;
+	}
+
+	public Metrics metrics() {
+		return mMetrics;
+	}
+
+	/**
+	 * @return The current state.
+	 */
+	public RatingState state() {
+		return mState.get();
+	}
+
+	/**
+	 * Returns the rating conditions for the current state and policy, working
+	 * them out again only if either changed since the last call.
+	 */
+	public Eligibility eligibility() {
+		final RatingState state = mState.get();
+		final RatingPolicy policy = mPolicy;
+		Eligibility eligibility = mEligibility;
+		if (eligibility.state != state || eligibility.policy != policy) {
+			eligibility = Eligibility.compute(state, policy);
+			mEligibility = eligibility;
+		}
+		return eligibility;
+	}
+
+	public boolean ratingConditionsHaveBeenMet() {
+		final Eligibility eligibility = eligibility();
+		final long now = mClock.currentTimeMillis();
+		if (now < eligibility.eligibleAt)
+			return false;
+		if (eligibility.policy.debug)
+			return true;
+		final CompiledRule rule = eligibility.policy.compiledRule;
+		if (rule != null)
+			return rule.matches(this, eligibility.state, now);
+		return remainingEvents(eligibility) == 0;
+	}
+
+	/**
+	 * Tells whether the user is at most one use, one significant event and
+	 * one day away from being prompted. With a rule in the policy, whether
+	 * the rule already matches.
+	 */
+	public boolean isCloseToPrompt() {
+		final Eligibility eligibility = eligibility();
+		final long now = mClock.currentTimeMillis();
+		final CompiledRule rule = eligibility.policy.compiledRule;
+		if (rule != null)
+			return eligibility.isClose(now, 0)
+					&& rule.matches(this, eligibility.state, now);
+		return eligibility.isClose(now, remainingEvents(eligibility));
+	}
+
+	/**
+	 * Works out how many significant events are still needed: the ones
+	 * missing for sigEventsBeforePrompt after the weighted channel events are
+	 * counted, plus the ones missing on each channel with a threshold.
+	 */
+	public long remainingEvents(Eligibility eligibility) {
+		final EventChannels channels = eligibility.policy.eventChannels;
+		long missing = eligibility.remainingEvents;
+		long perChannel = 0;
+		for (int id = 0, size = channels.size(); id < size; ++id) {
+			int count = mEventCounts.get(id);
+			missing -= (long) count * channels.weight(id);
+			perChannel += Math.max(0, channels.threshold(id) - count);
+		}
+		return Math.max(0, missing) + perChannel;
+	}
+
+	/**
+	 * @return The number of events on a channel of the policy.
+	 */
+	public int eventCount(int channelId) {
+		return mEventCounts.get(channelId);
+	}
+
+	/**
+	 * Applies a transition to the current state without locking. When another
+	 * thread changed the state in the meantime the transition is applied
+	 * again to the newer state. Schedules a write if fields became dirty.
+	 *
+	 * @return The new state.
+	 */
+	public RatingState update(RatingState.Transition transition) {
+		RatingState prev, next;
+		do {
+			prev = mState.get();
+			next = transition.apply(prev);
+		} while (!mState.compareAndSet(prev, next));
+
+		if (next.dirtyFields != 0)
+			scheduleWrite();
+		return next;
+	}
+
+	public RatingState recordUses(final int uses) {
+		mMetrics.count(Metrics.Counter.USES, uses);
+		return update(new RatingState.Transition() {
+			public RatingState apply(RatingState state) {
+				return state.withUses(uses);
+			}
+		});
+	}
+
+	/**
+	 * Records a significant event. Before the first load it is held back and
+	 * added to the loaded count.
+	 */
+	public RatingState recordSignificantEvent() {
+		mMetrics.count(Metrics.Counter.SIGNIFICANT_EVENTS);
+		int pending;
+		do {
+			pending = mPendingEvents.get();
+			if (pending == CLOSED)
+				return update(SIGNIFICANT_EVENT);
+		} while (!mPendingEvents.compareAndSet(pending, pending + 1));
+		return mState.get();
+	}
+
+	/**
+	 * Records several significant events at once, see EventAccumulator.
+	 */
+	public RatingState recordSignificantEvents(final int events) {
+		mMetrics.count(Metrics.Counter.SIGNIFICANT_EVENTS, events);
+		int pending;
+		do {
+			pending = mPendingEvents.get();
+			if (pending == CLOSED) {
+				return update(new RatingState.Transition() {
+					public RatingState apply(RatingState state) {
+						return state.withSignificantEvents(events);
+					}
+				});
+			}
+		} while (!mPendingEvents.compareAndSet(pending, pending + events));
+		return mState.get();
+	}
+
+	/**
+	 * Records an event on a channel of the policy. Does not allocate. Before
+	 * the first load the event is held back like recordSignificantEvent().
+	 * 
+	 * @return The number of events on the channel, or held back before the
+	 *         first load.
+	 */
+	public int recordSignificantEvent(int channelId) {
+		return recordSignificantEvents(channelId, 1);
+	}
+
+	/**
+	 * Records several events on a channel of the policy at once, see
+	 * recordSignificantEvent(int).
+	 */
+	public int recordSignificantEvents(int channelId, int events) {
+		mMetrics.count(Metrics.Counter.SIGNIFICANT_EVENTS, events);
+		for (;;) {
+			int pending = mPendingEventCounts.get(channelId);
+			if (pending == CLOSED)
+				break;
+			if (mPendingEventCounts.compareAndSet(channelId, pending, pending + events))
+				return pending + events;
+		}
+
+		int count = mEventCounts.addAndGet(channelId, events);
+		if (mEventCountsDirty.compareAndSet(false, true))
+			scheduleWrite();
+		return count;
+	}
+
+	public RatingState setRatedCurrentVersion(final boolean rated) {
+		return update(new RatingState.Transition() {
+			public RatingState apply(RatingState state) {
+				return state.withRatedCurrentVersion(rated);
+			}
+		});
+	}
+
+	public RatingState declineToRate() {
+		return update(DECLINED);
+	}
+
+	/**
+	 * @param date The time of the request, or RatingState.NO_DATE.
+	 */
+	public RatingState setReminderRequestDate(final long date) {
+		return update(new RatingState.Transition() {
+			public RatingState apply(RatingState state) {
+				return state.withReminderRequestDate(date);
+			}
+		});
+	}
+
+	public RatingState remindLater() {
+		return setReminderRequestDate(mClock.currentTimeMillis());
+	}
+
+	/**
+	 * Starts tracking from scratch, including the first use date.
+	 */
+	public RatingState resetTracking(final long version) {
+		final long now = mClock.currentTimeMillis();
+		resetEventCounts();
+		return update(new RatingState.Transition() {
+			public RatingState apply(RatingState state) {
+				return state.resetForVersion(version).withFirstUseDate(now);
+			}
+		});
+	}
+
+	/**
+	 * Starts tracking a new version of the app. The first use date is kept.
+	 */
+	public RatingState resetTrackingForNewVersion(final long version) {
+		resetEventCounts();
+		return update(new RatingState.Transition() {
+			public RatingState apply(RatingState state) {
+				return state.resetForVersion(version);
+			}
+		});
+	}
+
+	/**
+	 * Reads the stored state. Fields with changes that have not been written
+	 * yet keep their in-memory value. Resets the tracking if installedVersion
+	 * is a new version.
+	 *
+	 * @param installedVersion The AppVersion key of the installed version.
+	 */
+	public void load(final long installedVersion) {
+		synchronized (mStoreLock) {
+			mStoreChanged = false;
+			if (mWatchingStore.compareAndSet(false, true))
+				mStore.setChangeListener(mStoreListener);
+
+			long start = mMetrics.start();
+			final RatingState stored = mStore.load();
+			// Events counted since the last load or write are added to the stored counts
+			if (mEventCounts.length() > 0) {
+				int[] counts = mStoredCounts.clone();
+				mStore.loadEventCounts(mPolicy.eventChannels, counts);
+				for (int id = 0; id < counts.length; ++id)
+					mEventCounts.addAndGet(id, counts[id] - mStoredCounts[id]);
+				mStoredCounts = counts;
+			}
+			mMetrics.stop(Metrics.Operation.LOAD, start);
+			final long now = mClock.currentTimeMillis();
+
+			// Did we save settings before?
+			if (stored != null) {
+				final RatingState base = mStored;
+				mStored = stored;
+				update(new RatingState.Transition() {
+					public RatingState apply(RatingState state) {
+						RatingState merged = state.mergeStored(stored, base);
+						if (!merged.hasFirstUseDate())
+							merged = merged.withFirstUseDate(now);
+						return merged;
+					}
+				});
+			} else {
+				update(new RatingState.Transition() {
+					public RatingState apply(RatingState state) {
+						if (state.hasFirstUseDate())
+							return state;
+						return state.resetForVersion(installedVersion)
+								.withFirstUseDate(now)
+								.withDirtyFields(RatingState.ALL_FIELDS);
+					}
+				});
+
+				if (mPolicy.debug)
+					System.out.println(String.format(
+							"APPIRATER Tracking version: %s",
+								AppVersion.toString(installedVersion)));
+			}
+		}
+
+		if (AppVersion.isNewVersion(mState.get().currentVersion, installedVersion,
+				mPolicy.versionGranularity))
+			resetTrackingForNewVersion(installedVersion);
+
+		if (!mLoaded) {
+			mLoaded = true;
+			applyPendingEvents();
+			if (mState.get().dirtyFields != 0)
+				scheduleWrite();
+		}
+	}
+
+	/**
+	 * @return true once load() completed, before which flush() does not
+	 *         write anything.
+	 */
+	public boolean isLoaded() {
+		return mLoaded;
+	}
+
+	/**
+	 * @return true if the store may have been changed by another writer since
+	 *         the state was loaded.
+	 */
+	public boolean storeChanged() {
+		return mStoreChanged;
+	}
+
+	/**
+	 * Stops listening for changes made by other writers. storeChanged()
+	 * returns true afterwards, since changes made in the meantime would go
+	 * unnoticed.
+	 */
+	public void stopWatchingStore() {
+		if (!mWatchingStore.compareAndSet(true, false))
+			return;
+
+		mStore.setChangeListener(null);
+		mStoreChanged = true;
+	}
+
+	/**
+	 * Marks every field as changed, so the next flush() writes them all.
+	 */
+	public void markAllDirty() {
+		if (mEventCounts.length() > 0)
+			mEventCountsDirty.set(true);
+		update(ALL_DIRTY);
+	}
+
+	/**
+	 * Writes the fields that changed since they were last written on the
+	 * calling thread. If the store throws, the fields and counts that were not
+	 * written are marked as changed again and another write is scheduled.
+	 */
+	public void flush() {
+		synchronized (mStoreLock) {
+			mWriteScheduled.set(false);
+			// Writing now would overwrite the stored counts
+			if (!mLoaded)
+				return;
+
+			// Take the dirty fields and mark them as written in one step
+			RatingState state;
+			do {
+				state = mState.get();
+			} while (!mState.compareAndSet(state, state.clean()));
+
+			int[] counts = null;
+			if (mEventCountsDirty.getAndSet(false)) {
+				counts = new int[mEventCounts.length()];
+				for (int id = 0; id < counts.length; ++id)
+					counts[id] = mEventCounts.get(id);
+			}
+
+			if (state.dirtyFields != 0 || counts != null) {
+				long start = mMetrics.start();
+				int unwritten = state.dirtyFields;
+				boolean countsUnwritten = counts != null;
+				try {
+					if (state.dirtyFields != 0) {
+						mStore.save(state, state.dirtyFields);
+						mStored = state.clean();
+						unwritten = 0;
+					}
+					if (counts != null) {
+						mStore.saveEventCounts(mPolicy.eventChannels, counts);
+						mStoredCounts = counts;
+						countsUnwritten = false;
+					}
+				} finally {
+					if (countsUnwritten)
+						mEventCountsDirty.set(true);
+					if (unwritten != 0)
+						update(dirty(unwritten));
+					else if (countsUnwritten)
+						scheduleWrite();
+				}
+				mMetrics.stop(Metrics.Operation.SAVE, start);
+			}
+		}
+	}
+
+	private static RatingState.Transition dirty(final int fields) {
+		return new RatingState.Transition() {
+			public RatingState apply(RatingState state) {
+				return state.withDirtyFields(fields);
+			}
+		};
+	}
+
+	/*
+	 * Adds the events recorded before the first load and closes the pending
+	 * counters.
+	 */
+	private void applyPendingEvents() {
+		final int events = mPendingEvents.getAndSet(CLOSED);
+		if (events > 0) {
+			update(new RatingState.Transition() {
+				public RatingState apply(RatingState state) {
+					return state.withSignificantEvents(events);
+				}
+			});
+		}
+
+		for (int id = 0; id < mPendingEventCounts.length(); ++id) {
+			int count = mPendingEventCounts.getAndSet(id, CLOSED);
+			if (count > 0) {
+				mEventCounts.addAndGet(id, count);
+				if (mEventCountsDirty.compareAndSet(false, true))
+					scheduleWrite();
+			}
+		}
+	}
+
+	private void resetEventCounts() {
+		if (mEventCounts.length() == 0)
+			return;
+
+		for (int id = 0; id < mEventCounts.length(); ++id)
+			mEventCounts.set(id, 0);
+		if (mEventCountsDirty.compareAndSet(false, true))
+			scheduleWrite();
+	}
+
+	/*
+	 * Asks the scheduler for a write, unless one was asked for already.
+	 */
+	private void scheduleWrite() {
+		WriteScheduler scheduler = mWriteScheduler;
+		if (scheduler != null && mWriteScheduled.compareAndSet(false, true))
+			scheduler.scheduleWrite();
+	}
+}
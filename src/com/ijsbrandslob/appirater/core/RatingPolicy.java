@@ -0,0 +1,45 @@
+package com.ijsbrandslob.appirater.core;
+
+/**
+ * The thresholds that decide when the user is prompted to rate the app. See
+ * Config for the meaning of each value.
+ */
+public final class RatingPolicy {
+	public final boolean debug;
+	public final int daysUntilPrompt;
+	public final int usesUntilPrompt;
+	public final int sigEventsBeforePrompt;
+	public final int timeBeforeReminding;
+	public final AppVersion.Granularity versionGranularity;
+	public final EventChannels eventChannels;
+	public final RatingRule rule;
+
+	// The rule resolved against eventChannels, null without a rule
+	final CompiledRule compiledRule;
+
+	public RatingPolicy(int daysUntilPrompt, int usesUntilPrompt, int timeBeforeReminding, int sigEventsBeforePrompt, AppVersion.Granularity versionGranularity, EventChannels eventChannels, RatingRule rule, boolean debug) {
+		this.debug                 = debug;
+		this.daysUntilPrompt       = daysUntilPrompt;
+		this.usesUntilPrompt       = usesUntilPrompt;
+		this.timeBeforeReminding   = timeBeforeReminding;
+		this.sigEventsBeforePrompt = sigEventsBeforePrompt;
+		this.versionGranularity    = versionGranularity;
+		this.eventChannels         = eventChannels;
+		this.rule                  = rule;
+		this.compiledRule          = rule != null ? rule.compile(eventChannels) : null;
+	}
+
+	/**
+	 * @return true if other has event channels of the same names in the same
+	 *         order, so that event counts kept for one fit the other.
+	 */
+	public boolean hasSameChannels(RatingPolicy other) {
+		if (eventChannels.size() != other.eventChannels.size())
+			return false;
+		for (int id = 0; id < eventChannels.size(); ++id) {
+			if (!eventChannels.name(id).equals(other.eventChannels.name(id)))
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,185 @@
+package com.ijsbrandslob.appirater.core;
+
+/**
+ * A custom condition for prompting the user, used instead of the
+ * daysUntilPrompt, usesUntilPrompt and sigEventsBeforePrompt thresholds.
+ * Users who rated or declined are still never prompted, and "Remind me later"
+ * still waits timeBeforeReminding days.
+ *
+ * Rules are built from terms and combined with and(), or() and not():
+ *
+ * <pre>
+ * RatingRule.uses().atLeast(10).and(RatingRule.days().atLeast(7))
+ * 		.or(RatingRule.events("purchase").atLeast(1))
+ * 		.and(RatingRule.daysSince(lastCrash).lessThan(3).not());
+ * </pre>
+ *
+ * A rule is compiled once into flat arrays when the RatingEngine is created,
+ * checking it does not allocate.
+ */
+public final class RatingRule {
+	/**
+	 * A value supplied by the app, like the time of the last crash. Called on
+	 * every check of the rule, so it should be cheap.
+	 */
+	public interface Input {
+		public long get();
+	}
+
+	// Operations, shared with CompiledRule
+	static final int OP_AND = 0;
+	static final int OP_OR = 1;
+	static final int OP_NOT = 2;
+	static final int OP_AT_LEAST = 3;
+	static final int OP_AT_MOST = 4;
+	static final int OP_RATED = 5;
+	static final int OP_DECLINED = 6;
+
+	// Kinds of terms
+	static final int TERM_USES = 0;
+	static final int TERM_DAYS = 1;
+	static final int TERM_SIG_EVENTS = 2;
+	static final int TERM_CHANNEL = 3;
+	static final int TERM_DAYS_SINCE_REMINDER = 4;
+	static final int TERM_INPUT = 5;
+	static final int TERM_DAYS_SINCE_INPUT = 6;
+
+	/**
+	 * A number that a rule can compare against.
+	 */
+	public static final class Term {
+		final int kind;
+		final String channel;
+		final Input input;
+
+		private Term(int kind, String channel, Input input) {
+			this.kind    = kind;
+			this.channel = channel;
+			this.input   = input;
+		}
+
+		public RatingRule atLeast(long value) {
+			return new RatingRule(OP_AT_LEAST, null, null, this, value);
+		}
+
+		public RatingRule atMost(long value) {
+			return new RatingRule(OP_AT_MOST, null, null, this, value);
+		}
+
+		public RatingRule greaterThan(long value) {
+			return value == Long.MAX_VALUE ? atLeast(value).and(atMost(value - 1)) : atLeast(value + 1);
+		}
+
+		public RatingRule lessThan(long value) {
+			return value == Long.MIN_VALUE ? atMost(value).and(atLeast(value + 1)) : atMost(value - 1);
+		}
+	}
+
+	final int op;
+	final RatingRule left;
+	final RatingRule right;
+	final Term term;
+	final long value;
+
+	private RatingRule(int op, RatingRule left, RatingRule right, Term term, long value) {
+		this.op    = op;
+		this.left  = left;
+		this.right = right;
+		this.term  = term;
+		this.value = value;
+	}
+
+	/**
+	 * The number of uses of the current version.
+	 */
+	public static Term uses() {
+		return new Term(TERM_USES, null, null);
+	}
+
+	/**
+	 * The number of whole days since the first use.
+	 */
+	public static Term days() {
+		return new Term(TERM_DAYS, null, null);
+	}
+
+	/**
+	 * The number of significant events, counting events on channels as often
+	 * as their weight.
+	 */
+	public static Term significantEvents() {
+		return new Term(TERM_SIG_EVENTS, null, null);
+	}
+
+	/**
+	 * The number of events on the named channel.
+	 */
+	public static Term events(String channel) {
+		return new Term(TERM_CHANNEL, channel, null);
+	}
+
+	/**
+	 * The number of whole days since the user chose "Remind me later", or
+	 * Long.MAX_VALUE if they never did.
+	 */
+	public static Term daysSinceReminder() {
+		return new Term(TERM_DAYS_SINCE_REMINDER, null, null);
+	}
+
+	/**
+	 * A value supplied by the app.
+	 */
+	public static Term value(Input input) {
+		return new Term(TERM_INPUT, null, input);
+	}
+
+	/**
+	 * The number of whole days since a time supplied by the app, in
+	 * milliseconds since the epoch. A negative time means it never happened,
+	 * which gives Long.MAX_VALUE.
+	 */
+	public static Term daysSince(Input time) {
+		return new Term(TERM_DAYS_SINCE_INPUT, null, time);
+	}
+
+	/**
+	 * True when the user rated the current version.
+	 */
+	public static RatingRule rated() {
+		return new RatingRule(OP_RATED, null, null, null, 0);
+	}
+
+	/**
+	 * True when the user declined to rate.
+	 */
+	public static RatingRule declined() {
+		return new RatingRule(OP_DECLINED, null, null, null, 0);
+	}
+
+	public RatingRule and(RatingRule other) {
+		return new RatingRule(OP_AND, this, other, null, 0);
+	}
+
+	public RatingRule or(RatingRule other) {
+		return new RatingRule(OP_OR, this, other, null, 0);
+	}
+
+	public RatingRule not() {
+		return new RatingRule(OP_NOT, this, null, null, 0);
+	}
+
+	/**
+	 * @throws IllegalArgumentException If the rule names a channel that is
+	 *             not one of channels.
+	 */
+	CompiledRule compile(EventChannels channels) {
+		return new CompiledRule(this, channels);
+	}
+
+	/**
+	 * @return The number of operations in this rule.
+	 */
+	int size() {
+		return 1 + (left != null ? left.size() : 0) + (right != null ? right.size() : 0);
+	}
+}
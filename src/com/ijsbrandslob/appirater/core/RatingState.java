@@ -0,0 +1,195 @@
+package com.ijsbrandslob.appirater.core;
+
+/**
+ * An immutable snapshot of everything Appirater tracks. Every change creates
+ * a new RatingState, so a snapshot can be read from any thread without
+ * locking and all of its fields are always consistent with each other.
+ *
+ * Each snapshot also records which fields changed since they were last
+ * written to disk.
+ */
+public final class RatingState {
+	public interface Transition {
+		public RatingState apply(RatingState state);
+	}
+
+	public static final long NO_DATE = -1;
+
+	public static final int FIELD_FIRST_USE_DATE        = 1 << 0;
+	public static final int FIELD_REMINDER_REQUEST_DATE = 1 << 1;
+	public static final int FIELD_USE_COUNT             = 1 << 2;
+	public static final int FIELD_SIG_EVENT_COUNT       = 1 << 3;
+	public static final int FIELD_CURRENT_VERSION       = 1 << 4;
+	public static final int FIELD_RATED_CURRENT_VERSION = 1 << 5;
+	public static final int FIELD_DECLINED_TO_RATE      = 1 << 6;
+	public static final int ALL_FIELDS                  = (1 << 7) - 1;
+
+	/**
+	 * The state before anything has been loaded.
+	 */
+	public static final RatingState EMPTY = new RatingState(NO_DATE, NO_DATE, 0, 0, AppVersion.NONE, false, false, 0);
+
+	public final long firstUseDate;
+	public final long reminderRequestDate;
+	public final int useCount;
+	public final int significantEventCount;
+	/**
+	 * The AppVersion key of the version being tracked.
+	 */
+	public final long currentVersion;
+	public final boolean ratedCurrentVersion;
+	public final boolean declinedToRate;
+
+	/**
+	 * The FIELD_ bits of the fields that have not been written yet.
+	 */
+	public final int dirtyFields;
+
+	public RatingState(long firstUseDate, long reminderRequestDate, int useCount, int significantEventCount, long currentVersion, boolean ratedCurrentVersion, boolean declinedToRate, int dirtyFields) {
+		this.firstUseDate          = firstUseDate;
+		this.reminderRequestDate   = reminderRequestDate;
+		this.useCount              = useCount;
+		this.significantEventCount = significantEventCount;
+		this.currentVersion        = currentVersion;
+		this.ratedCurrentVersion   = ratedCurrentVersion;
+		this.declinedToRate        = declinedToRate;
+		this.dirtyFields           = dirtyFields;
+	}
+
+	/**
+	 * Builds a state from the values of binary stores, see value().
+	 * 
+	 * @param values The values indexed by the bit number of their field.
+	 * @param fields The FIELD_ bits of the values that were stored. The
+	 *            others get their value from EMPTY.
+	 */
+	public static RatingState fromValues(long[] values, int fields) {
+		return new RatingState(
+				(fields & FIELD_FIRST_USE_DATE) != 0 ? values[0] : EMPTY.firstUseDate,
+				(fields & FIELD_REMINDER_REQUEST_DATE) != 0 ? values[1] : EMPTY.reminderRequestDate,
+				(fields & FIELD_USE_COUNT) != 0 ? (int) values[2] : EMPTY.useCount,
+				(fields & FIELD_SIG_EVENT_COUNT) != 0 ? (int) values[3] : EMPTY.significantEventCount,
+				(fields & FIELD_CURRENT_VERSION) != 0 ? values[4] : EMPTY.currentVersion,
+				(fields & FIELD_RATED_CURRENT_VERSION) != 0 ? values[5] != 0 : EMPTY.ratedCurrentVersion,
+				(fields & FIELD_DECLINED_TO_RATE) != 0 ? values[6] != 0 : EMPTY.declinedToRate,
+				0);
+	}
+
+	/**
+	 * @return The value of a single field as a long, booleans as 0 or 1.
+	 */
+	public long value(int field) {
+		switch (field) {
+		case FIELD_FIRST_USE_DATE:
+			return firstUseDate;
+		case FIELD_REMINDER_REQUEST_DATE:
+			return reminderRequestDate;
+		case FIELD_USE_COUNT:
+			return useCount;
+		case FIELD_SIG_EVENT_COUNT:
+			return significantEventCount;
+		case FIELD_CURRENT_VERSION:
+			return currentVersion;
+		case FIELD_RATED_CURRENT_VERSION:
+			return ratedCurrentVersion ? 1 : 0;
+		case FIELD_DECLINED_TO_RATE:
+			return declinedToRate ? 1 : 0;
+		default:
+			throw new IllegalArgumentException("Not a single field: " + field);
+		}
+	}
+
+	public boolean hasFirstUseDate() {
+		return firstUseDate != NO_DATE;
+	}
+
+	public RatingState withUses(int uses) {
+		return new RatingState(firstUseDate, reminderRequestDate, useCount + uses, significantEventCount, currentVersion, ratedCurrentVersion, declinedToRate, dirtyFields | FIELD_USE_COUNT);
+	}
+
+	public RatingState withSignificantEvents(int events) {
+		return new RatingState(firstUseDate, reminderRequestDate, useCount, significantEventCount + events, currentVersion, ratedCurrentVersion, declinedToRate, dirtyFields | FIELD_SIG_EVENT_COUNT);
+	}
+
+	public RatingState withRatedCurrentVersion(boolean rated) {
+		return new RatingState(firstUseDate, reminderRequestDate, useCount, significantEventCount, currentVersion, rated, declinedToRate, dirtyFields | FIELD_RATED_CURRENT_VERSION);
+	}
+
+	public RatingState withDeclinedToRate(boolean declined) {
+		return new RatingState(firstUseDate, reminderRequestDate, useCount, significantEventCount, currentVersion, ratedCurrentVersion, declined, dirtyFields | FIELD_DECLINED_TO_RATE);
+	}
+
+	public RatingState withReminderRequestDate(long date) {
+		return new RatingState(firstUseDate, date, useCount, significantEventCount, currentVersion, ratedCurrentVersion, declinedToRate, dirtyFields | FIELD_REMINDER_REQUEST_DATE);
+	}
+
+	public RatingState withFirstUseDate(long date) {
+		return new RatingState(date, reminderRequestDate, useCount, significantEventCount, currentVersion, ratedCurrentVersion, declinedToRate, dirtyFields | FIELD_FIRST_USE_DATE);
+	}
+
+	/**
+	 * Starts tracking a version from scratch. The first use date is kept.
+	 */
+	public RatingState resetForVersion(long version) {
+		return new RatingState(firstUseDate, NO_DATE, 0, 0, version, false, false, dirtyFields
+				| FIELD_CURRENT_VERSION | FIELD_RATED_CURRENT_VERSION | FIELD_DECLINED_TO_RATE
+				| FIELD_REMINDER_REQUEST_DATE | FIELD_SIG_EVENT_COUNT | FIELD_USE_COUNT);
+	}
+
+	/**
+	 * @return This state with the given fields marked as not yet written.
+	 */
+	public RatingState withDirtyFields(int fields) {
+		if ((dirtyFields | fields) == dirtyFields)
+			return this;
+		return new RatingState(firstUseDate, reminderRequestDate, useCount, significantEventCount, currentVersion, ratedCurrentVersion, declinedToRate, dirtyFields | fields);
+	}
+
+	/**
+	 * @return This state with all fields marked as written.
+	 */
+	public RatingState clean() {
+		if (dirtyFields == 0)
+			return this;
+		return new RatingState(firstUseDate, reminderRequestDate, useCount, significantEventCount, currentVersion, ratedCurrentVersion, declinedToRate, 0);
+	}
+
+	/**
+	 * Combines this state with one that was read from disk. Fields that have
+	 * not been written yet keep their value from this state, all others take
+	 * the stored value.
+	 */
+	public RatingState mergeStored(RatingState stored) {
+		final int dirty = dirtyFields;
+		return new RatingState(
+				(dirty & FIELD_FIRST_USE_DATE) != 0 ? firstUseDate : stored.firstUseDate,
+				(dirty & FIELD_REMINDER_REQUEST_DATE) != 0 ? reminderRequestDate : stored.reminderRequestDate,
+				(dirty & FIELD_USE_COUNT) != 0 ? useCount : stored.useCount,
+				(dirty & FIELD_SIG_EVENT_COUNT) != 0 ? significantEventCount : stored.significantEventCount,
+				(dirty & FIELD_CURRENT_VERSION) != 0 ? currentVersion : stored.currentVersion,
+				(dirty & FIELD_RATED_CURRENT_VERSION) != 0 ? ratedCurrentVersion : stored.ratedCurrentVersion,
+				(dirty & FIELD_DECLINED_TO_RATE) != 0 ? declinedToRate : stored.declinedToRate,
+				dirty | stored.dirtyFields);
+	}
+
+	/**
+	 * Like mergeStored(RatingState), but the use and significant event counts
+	 * add up: the stored count plus what this state counted on top of base.
+	 * Increments made by another writer since base was stored are therefore
+	 * kept, as are the ones of this state that have not been written yet.
+	 * 
+	 * @param base The state as it was last read from or written to disk.
+	 */
+	public RatingState mergeStored(RatingState stored, RatingState base) {
+		final int dirty = dirtyFields;
+		return new RatingState(
+				(dirty & FIELD_FIRST_USE_DATE) != 0 ? firstUseDate : stored.firstUseDate,
+				(dirty & FIELD_REMINDER_REQUEST_DATE) != 0 ? reminderRequestDate : stored.reminderRequestDate,
+				stored.useCount + useCount - base.useCount,
+				stored.significantEventCount + significantEventCount - base.significantEventCount,
+				(dirty & FIELD_CURRENT_VERSION) != 0 ? currentVersion : stored.currentVersion,
+				(dirty & FIELD_RATED_CURRENT_VERSION) != 0 ? ratedCurrentVersion : stored.ratedCurrentVersion,
+				(dirty & FIELD_DECLINED_TO_RATE) != 0 ? declinedToRate : stored.declinedToRate,
+				dirty | stored.dirtyFields);
+	}
+}
@@ -0,0 +1,54 @@
+package com.ijsbrandslob.appirater.core;
+
+/**
+ * Persists a RatingState. Implementations are called by RatingEngine from one
+ * thread at a time and may block.
+ */
+public interface RatingStateStore {
+	public interface ChangeListener {
+		/**
+		 * Called when something other than this store changed the stored
+		 * state, so it has to be loaded again.
+		 */
+		public void onStoreChanged();
+	}
+
+	/**
+	 * @return The stored state without dirty fields, or null if nothing has
+	 *         been stored yet.
+	 */
+	public RatingState load();
+
+	/**
+	 * Writes the given fields of state.
+	 * 
+	 * @param state The state to take the values from.
+	 * @param fields The RatingState.FIELD_ bits of the fields to write.
+	 */
+	public void save(RatingState state, int fields);
+
+	/**
+	 * Reads the stored count of every event channel. Channels that were never
+	 * written are left untouched.
+	 * 
+	 * @param channels The channels to read.
+	 * @param counts Receives the count of each channel, indexed by id.
+	 */
+	public void loadEventCounts(EventChannels channels, int[] counts);
+
+	/**
+	 * Writes the count of every event channel.
+	 * 
+	 * @param channels The channels to write.
+	 * @param counts The count of each channel, indexed by id.
+	 */
+	public void saveEventCounts(EventChannels channels, int[] counts);
+
+	/**
+	 * Sets the listener to notify of changes made by other writers. Stores
+	 * that can not detect such changes ignore it.
+	 * 
+	 * @param listener The listener, or null to stop listening.
+	 */
+	public void setChangeListener(ChangeListener listener);
+}
@@ -0,0 +1,52 @@
+package com.ijsbrandslob.appirater.core;
+
+/**
+ * Tells when the app as a whole comes to the foreground, for counting one use
+ * per session. A session ends when no Activity is started any more; one that
+ * is started again within the session timeout continues the same session,
+ * so Activities starting each other or being recreated do not count a use.
+ *
+ * Not thread safe; the Activity callbacks all arrive on the UI thread.
+ */
+public final class SessionCounter {
+	private final long mSessionTimeout;
+
+	private int mStarted;
+	private boolean mHadSession;
+	private long mStoppedAt;
+
+	/**
+	 * @param sessionTimeout How long the app may be in the background, in
+	 *            milliseconds, before the next start is a new session.
+	 */
+	public SessionCounter(long sessionTimeout) {
+		mSessionTimeout = sessionTimeout;
+	}
+
+	/**
+	 * Called when an Activity is started.
+	 *
+	 * @param now The time in milliseconds, from a clock that does not jump,
+	 *            like SystemClock.elapsedRealtime().
+	 * @return true if this starts a new session.
+	 */
+	public boolean activityStarted(long now) {
+		if (mStarted++ > 0)
+			return false;
+
+		if (mHadSession && now - mStoppedAt < mSessionTimeout)
+			return false;
+		mHadSession = true;
+		return true;
+	}
+
+	/**
+	 * Called when an Activity is stopped.
+	 *
+	 * @param now The time on the same clock as activityStarted().
+	 */
+	public void activityStopped(long now) {
+		if (mStarted > 0 && --mStarted == 0)
+			mStoppedAt = now;
+	}
+}
@@ -0,0 +1,372 @@
+package com.ijsbrandslob.appirater.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Stores the RatingState for apps that run Appirater in several processes.
+ * Every process writes a shard file of its own in a shared directory, so no
+ * process can overwrite what another one wrote and no file locks are
+ * needed. Loading reads all shards and merges them: the use, significant
+ * event and channel counts of the shards add up, and every other field takes
+ * the value that was written last.
+ *
+ * A shard holds the counts its process added rather than totals. On a write
+ * the store adds the difference between the value it is given and the total
+ * it last loaded or wrote, so increments of other processes are never
+ * counted twice or lost. The counts are kept per version: a shard stamps
+ * them with the version they were counted for, and loading only adds up the
+ * counts of the current version. A reset for a new version starts the
+ * counts of the shard from zero instead of subtracting the old totals, so
+ * processes that reset at the same time do not subtract them twice.
+ *
+ * A shard starts with a header (magic, format, stored fields, number of
+ * channels), followed by a value and a write stamp per field, where the
+ * counts have the version instead of a stamp, the version of the channel
+ * counts, the length and UTF-8 name and the count per channel and a CRC32
+ * of everything before it. It is small and replaced as a whole through a temporary file. Shards
+ * with a wrong CRC are skipped.
+ */
+public class ShardedStateStore implements RatingStateStore {
+	static final int MAGIC = 0x41505344; // "APSD"
+	static final int FORMAT = 1;
+	static final String SUFFIX = ".shard";
+
+	private static final int HEADER_SIZE = 16;
+	private static final int FIELD_COUNT = Integer.bitCount(RatingState.ALL_FIELDS);
+	private static final int COUNTERS = RatingState.FIELD_USE_COUNT
+			| RatingState.FIELD_SIG_EVENT_COUNT;
+	private static final int VERSION = Integer.numberOfTrailingZeros(RatingState.FIELD_CURRENT_VERSION);
+	private static final int CHANNEL_VERSION = HEADER_SIZE + 16 * FIELD_COUNT;
+	private static final int CHANNELS = CHANNEL_VERSION + 8;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final File mDirectory;
+	private final File mShard;
+	private final Clock mClock;
+
+	// This process's shard: counts it added with their version, other values
+	// with their stamps
+	private final long[] mValues = new long[FIELD_COUNT];
+	private final long[] mStamps = new long[FIELD_COUNT];
+	private int mStoredFields;
+	private long mChannelVersion = AppVersion.NONE;
+	private final Map<String, Long> mEventCounts = new LinkedHashMap<String, Long>();
+
+	// The merged totals of mVersion as last loaded or written
+	private long mVersion = AppVersion.NONE;
+	private final long[] mTotals = new long[FIELD_COUNT];
+	private final Map<String, Long> mEventTotals = new HashMap<String, Long>();
+	private long mLastStamp;
+	private boolean mRead;
+
+	private volatile ChangeListener mListener;
+
+	/**
+	 * @param directory The directory shared by all processes.
+	 * @param shard The name of this process's shard, the same every time the
+	 *            process runs.
+	 */
+	public ShardedStateStore(File directory, String shard) {
+		this(directory, shard, Clock.SYSTEM);
+	}
+
+	/**
+	 * @param directory The directory shared by all processes.
+	 * @param shard The name of this process's shard, the same every time the
+	 *            process runs.
+	 * @param clock The clock the write stamps are taken from.
+	 */
+	public ShardedStateStore(File directory, String shard, Clock clock) {
+		mDirectory = directory;
+		mShard = new File(directory, shard + SUFFIX);
+		mClock = clock;
+	}
+
+	public RatingState load() {
+		readOwnShard();
+
+		int fields = 0;
+		long[] values = new long[FIELD_COUNT];
+		long[] stamps = new long[FIELD_COUNT];
+		List<ByteBuffer> shards = new ArrayList<ByteBuffer>();
+
+		File[] files = mDirectory.listFiles();
+		for (int i = 0; files != null && i < files.length; ++i) {
+			ByteBuffer shard = readShard(files[i]);
+			if (shard == null)
+				continue;
+			shards.add(shard);
+
+			int stored = shard.getInt(8);
+			for (int bit = 0; bit < FIELD_COUNT; ++bit) {
+				if ((stored & (1 << bit)) == 0 || ((1 << bit) & COUNTERS) != 0)
+					continue;
+
+				long value = shard.getLong(HEADER_SIZE + 16 * bit);
+				long stamp = shard.getLong(HEADER_SIZE + 16 * bit + 8);
+				mLastStamp = Math.max(mLastStamp, stamp);
+				if ((fields & (1 << bit)) == 0 || stamp > stamps[bit]) {
+					values[bit] = value;
+					stamps[bit] = stamp;
+				}
+			}
+			fields |= stored;
+		}
+
+		// Only the counts of the current version add up
+		mVersion = (fields & RatingState.FIELD_CURRENT_VERSION) != 0 ? values[VERSION]
+				: RatingState.EMPTY.currentVersion;
+		mEventTotals.clear();
+		for (ByteBuffer shard : shards) {
+			int stored = shard.getInt(8);
+			for (int bit = 0; bit < FIELD_COUNT; ++bit) {
+				if ((stored & (1 << bit) & COUNTERS) != 0
+						&& shard.getLong(HEADER_SIZE + 16 * bit + 8) == mVersion)
+					values[bit] += shard.getLong(HEADER_SIZE + 16 * bit);
+			}
+			if (shard.getLong(CHANNEL_VERSION) == mVersion)
+				readChannels(shard, mEventTotals);
+		}
+
+		System.arraycopy(values, 0, mTotals, 0, FIELD_COUNT);
+		if ((fields & RatingState.FIELD_FIRST_USE_DATE) == 0)
+			return null;
+		return RatingState.fromValues(values, fields);
+	}
+
+	public void save(RatingState state, int fields) {
+		readOwnShard();
+
+		// A new version starts counting from zero
+		if (state.currentVersion != mVersion) {
+			mVersion = state.currentVersion;
+			for (int bit = 0; bit < FIELD_COUNT; ++bit) {
+				if (((1 << bit) & COUNTERS) != 0)
+					mTotals[bit] = 0;
+			}
+			mEventTotals.clear();
+		}
+
+		long stamp = nextStamp();
+		for (int bit = 0; bit < FIELD_COUNT; ++bit) {
+			if ((fields & (1 << bit)) == 0)
+				continue;
+
+			long value = state.value(1 << bit);
+			if (((1 << bit) & COUNTERS) != 0) {
+				if (mStamps[bit] != mVersion) {
+					mValues[bit] = 0;
+					mStamps[bit] = mVersion;
+				}
+				mValues[bit] += value - mTotals[bit];
+			} else {
+				mValues[bit] = value;
+				mStamps[bit] = stamp;
+			}
+			mTotals[bit] = value;
+		}
+		mStoredFields |= fields;
+		write();
+	}
+
+	public void loadEventCounts(EventChannels channels, int[] counts) {
+		for (int id = 0; id < counts.length; ++id) {
+			Long total = mEventTotals.get(channels.name(id));
+			if (total != null)
+				counts[id] = (int) total.longValue();
+		}
+	}
+
+	public void saveEventCounts(EventChannels channels, int[] counts) {
+		readOwnShard();
+
+		if (mChannelVersion != mVersion) {
+			mEventCounts.clear();
+			mChannelVersion = mVersion;
+		}
+		for (int id = 0; id < counts.length; ++id) {
+			String name = channels.name(id);
+			Long total = mEventTotals.get(name);
+			Long own = mEventCounts.get(name);
+			mEventCounts.put(name, (own != null ? own : 0) + counts[id]
+					- (total != null ? total : 0));
+			mEventTotals.put(name, (long) counts[id]);
+		}
+		write();
+	}
+
+	public void setChangeListener(ChangeListener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Tells the store that a shard in its directory was written, for example
+	 * by a file observer. Notifies the ChangeListener unless it was this
+	 * process's own shard.
+	 *
+	 * @param name The name of the file that changed.
+	 */
+	public void onShardWritten(String name) {
+		ChangeListener listener = mListener;
+		if (listener != null && name != null && name.endsWith(SUFFIX)
+				&& !name.equals(mShard.getName()))
+			listener.onStoreChanged();
+	}
+
+	/*
+	 * Reads this process's own shard, once.
+	 */
+	private void readOwnShard() {
+		if (mRead)
+			return;
+		mRead = true;
+
+		ByteBuffer shard = readShard(mShard);
+		if (shard == null)
+			return;
+
+		mStoredFields = shard.getInt(8);
+		for (int bit = 0; bit < FIELD_COUNT; ++bit) {
+			mValues[bit] = shard.getLong(HEADER_SIZE + 16 * bit);
+			mStamps[bit] = shard.getLong(HEADER_SIZE + 16 * bit + 8);
+		}
+		mChannelVersion = shard.getLong(CHANNEL_VERSION);
+		readChannels(shard, mEventCounts);
+	}
+
+	private static void add(Map<String, Long> counts, String name, Long count) {
+		if (count != null) {
+			Long current = counts.get(name);
+			counts.put(name, (current != null ? current : 0) + count);
+		}
+	}
+
+	/*
+	 * Adds the channel counts of shard to counts. readShard() checked that
+	 * they fit.
+	 */
+	private static void readChannels(ByteBuffer shard, Map<String, Long> counts) {
+		int channels = shard.getInt(12);
+		shard.position(CHANNELS);
+		for (int c = 0; c < channels; ++c) {
+			byte[] name = new byte[shard.getShort() & 0xffff];
+			shard.get(name);
+			add(counts, new String(name, UTF_8), shard.getLong());
+		}
+	}
+
+	/*
+	 * Later than every stamp seen so far, so the value written now wins over
+	 * the ones it replaces even if the clocks of the writers disagree.
+	 */
+	private long nextStamp() {
+		mLastStamp = Math.max(mClock.currentTimeMillis(), mLastStamp + 1);
+		return mLastStamp;
+	}
+
+	private void write() {
+		Map<byte[], Long> counts = new LinkedHashMap<byte[], Long>();
+		int size = CHANNELS + 4;
+		for (Map.Entry<String, Long> count : mEventCounts.entrySet()) {
+			byte[] name = count.getKey().getBytes(UTF_8);
+			counts.put(name, count.getValue());
+			size += 2 + name.length + 8;
+		}
+
+		ByteBuffer shard = ByteBuffer.allocate(size);
+		shard.putInt(MAGIC).putInt(FORMAT).putInt(mStoredFields).putInt(counts.size());
+		for (int bit = 0; bit < FIELD_COUNT; ++bit)
+			shard.putLong(mValues[bit]).putLong(mStamps[bit]);
+		shard.putLong(mChannelVersion);
+		for (Map.Entry<byte[], Long> count : counts.entrySet())
+			shard.putShort((short) count.getKey().length).put(count.getKey())
+					.putLong(count.getValue());
+
+		CRC32 crc = new CRC32();
+		crc.update(shard.array(), 0, shard.position());
+		shard.putInt((int) crc.getValue());
+
+		mDirectory.mkdirs();
+		File temp = new File(mDirectory, mShard.getName() + ".tmp");
+		try {
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				out.write(shard.array());
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(mShard))
+				throw new IOException("Could not replace " + mShard);
+		} catch (IOException ex) {
+			// The values are still in memory and written with the next change
+			temp.delete();
+		}
+	}
+
+	/*
+	 * @return The shard, or null if it is missing or damaged.
+	 */
+	private static ByteBuffer readShard(File file) {
+		if (!file.getName().endsWith(SUFFIX))
+			return null;
+
+		byte[] bytes;
+		try {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				bytes = new byte[(int) Math.min(file.length(), 64 * 1024)];
+				int read = 0, n;
+				while (read < bytes.length && (n = in.read(bytes, read, bytes.length - read)) > 0)
+					read += n;
+				if (read < bytes.length)
+					return null;
+			} finally {
+				in.close();
+			}
+		} catch (IOException ex) {
+			return null;
+		}
+
+		ByteBuffer shard = ByteBuffer.wrap(bytes);
+		if (bytes.length < CHANNELS + 4 || shard.getInt(0) != MAGIC
+				|| shard.getInt(4) != FORMAT
+				|| shard.getInt(12) < 0 || shard.getInt(12) > bytes.length / 10)
+			return null;
+
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length - 4);
+		if ((int) crc.getValue() != shard.getInt(bytes.length - 4))
+			return null;
+		return channelsEnd(shard) == bytes.length - 4 ? shard : null;
+	}
+
+	/*
+	 * @return The offset after the channel counts, or -1 if they do not fit.
+	 */
+	private static int channelsEnd(ByteBuffer shard) {
+		int channels = shard.getInt(12);
+		shard.position(CHANNELS);
+		try {
+			for (int c = 0; c < channels; ++c)
+				shard.position(shard.position() + 2 + (shard.getShort() & 0xffff) + 8);
+		} catch (BufferUnderflowException ex) {
+			return -1;
+		} catch (IllegalArgumentException ex) {
+			return -1;
+		}
+		return shard.position();
+	}
+}
@@ -0,0 +1,213 @@
+package com.ijsbrandslob.appirater.core;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The stored RatingState and event counts as a single string, for stores
+ * that keep it under one key and so always write it as a whole. A write can
+ * not leave some fields from before and others from after it.
+ *
+ * The record is a list of entries separated by ';'. The first is the
+ * format, followed by a name=value entry per stored field and "c:" plus the
+ * channel name per event count, and last a CRC32 of everything before it:
+ *
+ * <pre>
+ * 1;first=1357000000000;uses=12;events=3;version=4295032832;c:purchase=2;crc=7f3a09c1
+ * </pre>
+ *
+ * Fields are added by giving them a new name without changing the format.
+ * Entries a release does not know are kept as they are and written back,
+ * so going back to an older release does not lose them. The format only
+ * changes when existing entries change their meaning. Of a record of a newer
+ * format only the entries that still parse are read, see isNewerFormat();
+ * the others are kept like unknown entries. The record keeps its format, so
+ * the newer release reads its own entries again after an upgrade.
+ */
+public final class StateRecord {
+	public static final int FORMAT = 1;
+
+	// The names of the fields, indexed by the bit number of their field
+	private static final String[] FIELD_NAMES = {
+		"first", "remind", "uses", "events", "version", "rated", "declined"
+	};
+	private static final String CHANNEL_PREFIX = "c:";
+	private static final String CRC = "crc=";
+
+	private final long[] mValues = new long[FIELD_NAMES.length];
+	private int mFields;
+	private final Map<String, Integer> mEventCounts = new LinkedHashMap<String, Integer>();
+	private final List<String> mUnknown = new ArrayList<String>();
+	private int mFormat = FORMAT;
+
+	public StateRecord() {
+	}
+
+	/**
+	 * @param encoded A record written by encode().
+	 * @return The record, or null if it is damaged.
+	 */
+	public static StateRecord decode(String encoded) {
+		int crcStart = encoded.lastIndexOf(';') + 1;
+		if (crcStart == 0 || !encoded.startsWith(CRC, crcStart))
+			return null;
+		try {
+			if (Long.parseLong(encoded.substring(crcStart + CRC.length()), 16) != crc(encoded
+					.substring(0, crcStart)))
+				return null;
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+
+		String[] entries = encoded.substring(0, crcStart - 1).split(";");
+		StateRecord record = new StateRecord();
+		try {
+			record.mFormat = Integer.parseInt(entries[0]);
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+
+		for (int i = 1; i < entries.length; ++i) {
+			try {
+				record.read(entries[i]);
+			} catch (NumberFormatException ex) {
+				// The CRC matched, so only a newer format can hold this
+				if (!record.isNewerFormat())
+					return null;
+				record.mUnknown.add(entries[i]);
+			}
+		}
+		return record;
+	}
+
+	private void read(String entry) {
+		int equals = entry.indexOf('=');
+		String name = entry.substring(0, Math.max(equals, 0));
+		String value = entry.substring(equals + 1);
+		int bit = fieldBit(name);
+		if (bit >= 0) {
+			mValues[bit] = Long.parseLong(value);
+			mFields |= 1 << bit;
+		} else if (name.startsWith(CHANNEL_PREFIX)) {
+			mEventCounts.put(unescape(name.substring(CHANNEL_PREFIX.length())),
+					Integer.parseInt(value));
+		} else {
+			mUnknown.add(entry);
+		}
+	}
+
+	/**
+	 * @return true if a newer release wrote the record in a format this one
+	 *         does not know. Its known entries were read as far as they
+	 *         parse; encode() writes the others back as they were.
+	 */
+	public boolean isNewerFormat() {
+		return mFormat > FORMAT;
+	}
+
+	public String encode() {
+		StringBuilder encoded = new StringBuilder().append(mFormat);
+		for (int bit = 0; bit < FIELD_NAMES.length; ++bit) {
+			if ((mFields & (1 << bit)) != 0)
+				encoded.append(';').append(FIELD_NAMES[bit]).append('=').append(mValues[bit]);
+		}
+		for (Map.Entry<String, Integer> count : mEventCounts.entrySet()) {
+			encoded.append(';').append(CHANNEL_PREFIX).append(escape(count.getKey()))
+					.append('=').append(count.getValue());
+		}
+		for (String entry : mUnknown)
+			encoded.append(';').append(entry);
+
+		encoded.append(';');
+		long crc = crc(encoded.toString());
+		return encoded.append(CRC).append(Long.toHexString(crc)).toString();
+	}
+
+	/**
+	 * @return The stored fields, or null if none were stored.
+	 */
+	public RatingState state() {
+		return mFields != 0 ? RatingState.fromValues(mValues, mFields) : null;
+	}
+
+	/**
+	 * @return The RatingState.FIELD_ bits of the stored fields.
+	 */
+	public int fields() {
+		return mFields;
+	}
+
+	/**
+	 * Takes the given fields from state and keeps the others.
+	 */
+	public void setState(RatingState state, int fields) {
+		for (int bit = 0; bit < FIELD_NAMES.length; ++bit) {
+			if ((fields & (1 << bit)) != 0) {
+				mValues[bit] = state.value(1 << bit);
+				forget(FIELD_NAMES[bit]);
+			}
+		}
+		mFields |= fields & RatingState.ALL_FIELDS;
+	}
+
+	/**
+	 * @return The count of the named channel, or fallback if it was never
+	 *         stored.
+	 */
+	public int eventCount(String channel, int fallback) {
+		Integer count = mEventCounts.get(channel);
+		return count != null ? count : fallback;
+	}
+
+	public void setEventCount(String channel, int count) {
+		if (mEventCounts.put(channel, count) == null)
+			forget(CHANNEL_PREFIX + escape(channel));
+	}
+
+	/*
+	 * Drops an entry of a newer format that did not parse once its name is
+	 * written by this release.
+	 */
+	private void forget(String name) {
+		if (mUnknown.isEmpty())
+			return;
+		for (Iterator<String> entries = mUnknown.iterator(); entries.hasNext();) {
+			if (entries.next().startsWith(name + "="))
+				entries.remove();
+		}
+	}
+
+	private static int fieldBit(String name) {
+		for (int bit = 0; bit < FIELD_NAMES.length; ++bit) {
+			if (FIELD_NAMES[bit].equals(name))
+				return bit;
+		}
+		return -1;
+	}
+
+	private static long crc(String text) {
+		CRC32 crc = new CRC32();
+		try {
+			crc.update(text.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException ex) {
+			throw new AssertionError(ex);
+		}
+		return crc.getValue();
+	}
+
+	/*
+	 * Channel names may hold the characters that separate the entries.
+	 */
+	private static String escape(String name) {
+		return name.replace("%", "%25").replace(";", "%3B").replace("=", "%3D");
+	}
+
+	private static String unescape(String name) {
+		return name.replace("%3D", "=").replace("%3B", ";").replace("%25", "%");
+	}
+}